@@ -0,0 +1,92 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.lang.*;
+import java.util.*;
+
+/*
+ * Multi-bin count table: a subordinate class for use by CompositeModel, which tallies up - in a single pass over the
+ * entries - how many members of each bin contain each fingerprint hash code. Every one-vs-rest model can then be derived
+ * from the table by arithmetic, rather than rescanning all of the fingerprints once per bin.
+ */
+class BinCountTable
+{
+	private final int nbins;
+	private List<int[]> fplist;
+	private int[] binidx;
+	private Map<Integer, int[]> counts = new HashMap<>(); // hash code: {#bin 0, ..., #bin N-1, total}
+	private int[] binTotals; // number of entries in each bin
+
+	// ------------ public methods ------------
+
+	// fingerprints are the sorted unique hash codes for each entry, and binidx is the bin that each of them belongs to
+	public BinCountTable(List<int[]> fplist, int[] binidx, int nbins)
+	{
+		this.nbins = nbins;
+		this.fplist = fplist;
+		this.binidx = binidx;
+
+		binTotals = new int[nbins];
+		final int num = fplist.size();
+		for (int n = 0; n < num; n++)
+		{
+			final int b = binidx[n];
+			binTotals[b]++;
+			for (int h : fplist.get(n))
+			{
+				int[] cnt = counts.get(h);
+				if (cnt == null) counts.put(h, cnt = new int[nbins + 1]);
+				cnt[b]++;
+				cnt[nbins]++;
+			}
+		}
+	}
+
+	public int numBins() {return nbins;}
+	public int getBinTotal(int bin) {return binTotals[bin];}
+	public int vocabularySize() {return counts.size();}
+
+	// returns the {per-bin..., total} counts for a hash code, or null if it was never seen
+	public int[] getCounts(int hash) {return counts.get(hash);}
+
+	// creates a model for which members of the given bin are active, and everything else is inactive; the result is
+	// equivalent to adding each of the fingerprints to a new model individually, and is ready to be built
+	public FingerprintBayesian deriveModel(int bin)
+	{
+		final int num = fplist.size();
+		List<Boolean> activity = new ArrayList<>(num);
+		for (int n = 0; n < num; n++) activity.add(binidx[n] == bin);
+
+		Map<Integer, int[]> inHash = new HashMap<>(counts.size() * 2);
+		for (Map.Entry<Integer, int[]> ent : counts.entrySet())
+		{
+			final int[] cnt = ent.getValue();
+			inHash.put(ent.getKey(), new int[]{cnt[bin], cnt[nbins]});
+		}
+
+		return new FingerprintBayesian(fplist, activity, inHash);
+	}
+}
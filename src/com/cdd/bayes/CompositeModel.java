@@ -24,13 +24,17 @@
 
 package com.cdd.bayes;
 
+import com.cdd.bayes.util.*;
+
 import java.io.*;
 import java.lang.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.fingerprint.*;
-import org.openscience.cdk.fingerprint.model.*;
+import org.openscience.cdk.fingerprint.model.Bayesian;
 import org.openscience.cdk.interfaces.IAtomContainer;
 
 /*
@@ -53,18 +57,44 @@ public class CompositeModel
 		public IAtomContainer mol = null;
 		public double val = Double.NaN;
 		public int[] fp = null;
+		public SDFRecordIndex source = null; // optional: if mol is null, the structure is parsed from this record on demand
+		public int record = -1;
+
+		// the structure, either as held or as freshly parsed from the source record (which is not retained)
+		public IAtomContainer getMolecule()
+		{
+			if (mol != null || source == null) return mol;
+			return source.getMolecule(record);
+		}
 	}
 
 	protected List<Entry> entries = new ArrayList<Entry>();
+	protected int[] valueOrder = null; // entry indices sorted by ascending value: built on demand, discarded when entries change
+	protected double[] sortedValues = null; // entry values in the same order
 
-	protected Bayesian[] models = null; // the payload: one model per bin is delivered
+	protected FingerprintBayesian[] models = null; // the payload: one model per bin is delivered
+	protected ScoringTable scoring = null; // compiled from the models, for fast prediction
 	protected int[][] matrix = null; // validation matrix [want][got]: diagonal entries are hits, off-diagonals are miss-by-distance
+	protected double[] rocAUC = null; // validation results for each bin, for models that were loaded from a file
+	protected String[] rocType = null;
+
+	protected Executor executor = null; // where to run parallel tasks: null means the common fork/join pool
+	protected FingerprintCache fpcache = null; // optional persistent store for fingerprints
+	protected int foldBits = 0; // size of folded fingerprints for diversity subsampling (power of 2); 0 means exact similarity
 
 	// constants used for internal workings; may need to tweak these to get optimal results
 	private final int CLUSTER_SUBSIZE = 100; // largest size of subset used for pre-clustering to estimate ROCs (high throughput)
 	private final int MAX_CANDIDATES = 50; // number of candidate segments to consider (in order of best first)
 	private final float MIN_ROC_SPLIT = 0.55f; // when best ROC for splitting a segment drops below this value, stop
 	private final float MIN_BIN_FRACTION = 0.05f; // creating a bin with less than this portion of entries is disallowed
+	private final int PARALLEL_CHUNK = 256; // number of entries given to each task when processing entries in parallel
+	private final int MAXMIN_THRESHOLD = 20000; // collections at least this big use MaxMin rather than greedy subsampling
+	private final int SWEEP_CHUNK = 16; // number of consecutive cutpoints given to each task when sweeping in parallel
+
+	// per-thread fingerprinting resources: the calculator, and a growable scratch buffer for hash codes
+	private static final ThreadLocal<CircularFingerprinter> threadFingerprinter =
+		ThreadLocal.withInitial(() -> new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP6));
+	private static final ThreadLocal<int[][]> threadHashBuffer = ThreadLocal.withInitial(() -> new int[][]{new int[256]});
 
 	// ------------ public methods ------------
 
@@ -76,7 +106,7 @@ public class CompositeModel
 	// create a model using data that was previously built; the boundary parameter includes the segmentation breaks,
 	// as well as the minimum/maximum values (see getBoundaries()); the models need to have been created with a previous
 	// instance (see getModels()); note that the models list is shallow-copied
-	public CompositeModel(double[] boundary, Bayesian[] models)
+	public CompositeModel(double[] boundary, FingerprintBayesian[] models)
 	{
 		final int nbins = models.length;
 
@@ -88,10 +118,15 @@ public class CompositeModel
 		segments = new double[boundary.length - 2];
 		for (int n = 0; n < segments.length; n++) segments[n] = boundary[n + 1];
 
-		for (Bayesian m : models) if (m.getClassType() != CircularFingerprinter.CLASS_ECFP6) 
-			throw new ModelException("Only ECFP6 fingerprints are permitted for composite models.");
-
 		this.models = Arrays.copyOf(models, nbins);
+		scoring = new ScoringTable(this.models);
+	}
+
+	// as above, for bin models that were built with the CDK Bayesian class (e.g. by an earlier version, then persisted with
+	// Bayesian.serialise()): they are converted into the fingerprint-native form, which is what getModels() returns
+	public CompositeModel(double[] boundary, Bayesian[] models)
+	{
+		this(boundary, adoptModels(models));
 	}
 
 	// adds a single molecule & value to the collection of contents that will be operated upon
@@ -101,29 +136,85 @@ public class CompositeModel
 		e.mol = mol;
 		e.val = val;
 		entries.add(e);
+		valueOrder = null;
 	}
 	
-	// add an already-instantiated entry to the list
+	// add an already-instantiated entry to the list; it is ignored if its structure cannot be parsed
 	public void addEntry(Entry e)
 	{
 		fillFingerprints(e);
+		if (e.fp == null) return;
 		entries.add(e);
+		valueOrder = null;
 	}
 	
-	// makes sure the fingerprint field is defined
+	// adds a batch of already-instantiated entries: the fingerprints are calculated in parallel first, and any entries whose
+	// structure cannot be parsed are left out
+	public void addEntries(Collection<Entry> list)
+	{
+		List<Entry> batch = new ArrayList<>(list);
+		fillFingerprints(batch);
+		for (Entry e : batch) if (e.fp != null) entries.add(e);
+		valueOrder = null;
+	}
+
+	// adds the training entries from a snapshot file (see TrainingSnapshot): these come with fingerprints, so no structures
+	// need to be parsed or fingerprinted
+	public void addSnapshot(File file) throws IOException
+	{
+		addEntries(new TrainingSnapshot(file).getTraining());
+	}
+
+	// makes sure the fingerprint field is defined for each entry in the list, farming them out to the executor
+	public void fillFingerprints(List<Entry> list)
+	{
+		final int num = list.size();
+		runParallel((num + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK, chunk ->
+		{
+			for (int n = chunk * PARALLEL_CHUNK, end = Math.min(num, n + PARALLEL_CHUNK); n < end; n++) fillFingerprints(list.get(n));
+		});
+	}
+
+	// makes sure the fingerprint field is defined, unless the entry's structure cannot be parsed (which can happen for lazily
+	// loaded entries), in which case it stays null
 	public void fillFingerprints(Entry e)
 	{
 		if (e.fp != null) return;
+		IAtomContainer mol = e.getMolecule();
+		if (mol != null) e.fp = obtainFingerprint(mol);
+	}
 
-		CircularFingerprinter circ = new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP6);
-		try {circ.calculate(e.mol);}
-		catch (CDKException ex) {throw new ModelException(ex);}
-		Set<Integer> fplist = new TreeSet<Integer>();
-		for (int n = circ.getFPCount() - 1; n >= 0; n--) fplist.add(circ.getFP(n).hashCode);
+	// folds a list of hash codes into a bitmask of the given size (must be a power of 2, at least 64), packed into longs
+	public static long[] foldFingerprint(int[] fp, int nbits)
+	{
+		long[] bits = new long[nbits >> 6];
+		final int mask = nbits - 1;
+		for (int h : fp)
+		{
+			final int b = h & mask;
+			bits[b >> 6] |= 1L << (b & 63);
+		}
+		return bits;
+	}
+
+	// computes the ECFP6 fingerprint for a molecule, in the form used by the models: sorted list of unique hash codes; the
+	// fingerprinter and the hash buffer are reused by each thread, so the only allocation is the returned array
+	public static int[] calculateFingerprint(IAtomContainer mol) throws CDKException
+	{
+		CircularFingerprinter circ = threadFingerprinter.get();
+		circ.calculate(mol);
+
+		final int count = circ.getFPCount();
+		int[][] holder = threadHashBuffer.get();
+		if (holder[0].length < count) holder[0] = new int[Math.max(count, holder[0].length * 2)];
+		int[] buff = holder[0];
+		for (int n = 0; n < count; n++) buff[n] = circ.getFP(n).hashCode;
 
-		e.fp = new int[fplist.size()];
-		int p = 0;
-		for (int h : fplist) e.fp[p++] = h;
+		// sort & dedupe in place
+		Arrays.sort(buff, 0, count);
+		int sz = 0;
+		for (int n = 0; n < count; n++) if (sz == 0 || buff[n] != buff[sz - 1]) buff[sz++] = buff[n];
+		return Arrays.copyOf(buff, sz);
 	}
 
 	// access to user-provided molecule/value/fingerprint content
@@ -165,6 +256,46 @@ public class CompositeModel
 		setMaxBins(nbins);
 	}
 
+	// parallel execution: the calculation fans out independent pieces of work (e.g. one model per bin) onto the executor; the
+	// default of null uses the common fork/join pool; the results are the same as for sequential execution, which can be had
+	// by providing an executor that runs each task immediately (e.g. Runnable::run)
+	public Executor getExecutor()
+	{
+		return executor;
+	}
+
+	public void setExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	// fingerprint cache: if provided, fillFingerprints(..) looks up each structure before calculating, and stashes anything
+	// new; it is up to the caller to flush the cache afterward
+	public FingerprintCache getFingerprintCache()
+	{
+		return fpcache;
+	}
+
+	public void setFingerprintCache(FingerprintCache fpcache)
+	{
+		this.fpcache = fpcache;
+	}
+
+	// folded fingerprints: when enabled, the diversity subsampling (greedy linear clustering) computes similarity by bit
+	// counting on fingerprints folded down to this size, which is faster; the folding collapses some hash codes together, so
+	// the similarities are approximate, which can change which entries get picked, and hence the segments; nothing else
+	// is affected; the default of 0 means similarity is computed from the exact hash lists
+	public int getFoldBits()
+	{
+		return foldBits;
+	}
+
+	public void setFoldBits(int nbits)
+	{
+		if (nbits != 0 && (nbits < 64 || Integer.bitCount(nbits) != 1)) throw new ModelException("Fold size must be a power of 2, at least 64.");
+		foldBits = nbits;
+	}
+
 	// segments are the cutpoints for separating the bins, with the idea number being #bins-1; the user may provide any number of
 	// them, some or all of which may be used; the cut points will be calculated automatically if not provided
 	public double[] getSegments()
@@ -187,16 +318,13 @@ public class CompositeModel
 		if (segments != null && segments.length >= num - 1) 
 			throw new ModelException("Provided " + num + " entries and " + segments.length + " segments: this isn't going to work.");
 
+		fillFingerprints(entries);
 		if (segments == null) determineSegments();
 
 		// record min/max
-		minVal = Double.POSITIVE_INFINITY;
-		maxVal = Double.NEGATIVE_INFINITY;
-		for (Entry e : entries)
-		{
-			minVal = Math.min(minVal, e.val);
-			maxVal = Math.max(maxVal, e.val);
-		}
+		ensureValueIndex();
+		minVal = sortedValues[0];
+		maxVal = sortedValues[num - 1];
 
 		// prepare bin assignments
 		int[][] bins = assignBins(segments);
@@ -204,38 +332,49 @@ public class CompositeModel
 		int[] binidx = new int[num];
 		for (int n = 0; n < nbins; n++) for (int b : bins[n]) binidx[b] = n;
 
-		// generate a calibrated model for each bin
-		models = new Bayesian[nbins];
-		for (int n = 0; n < nbins; n++)
-		{
-			models[n] = new Bayesian(CircularFingerprinter.CLASS_ECFP6,0);
-			for (int i = 0; i < nbins; i++) for (int b : bins[i])
-				models[n].addMolecule(entries.get(b).mol, i == n);
-			models[n].build();
-			models[n].validateFiveFold();
-			//Main.writeln("  bin="+n+" roc="+models[n].getROCAUC());
-		}
+		// generate a calibrated model for each bin: the hash counts are tallied once for all bins, then each of the
+		// one-vs-rest models is derived from them
+		List<int[]> fplist = new ArrayList<>(num);
+		for (Entry e : entries) fplist.add(e.fp);
+		BinCountTable table = new BinCountTable(fplist, binidx, nbins);
 
-		// validation matrix: mapping is [want][got]
-		matrix = new int[nbins][];
-		for (int n = 0; n < nbins; n++) matrix[n] = new int[nbins];
+		final FingerprintBayesian[] binModels = new FingerprintBayesian[nbins];
+		runParallel(nbins, n ->
+		{
+			binModels[n] = table.deriveModel(n);
+			binModels[n].build();
+			binModels[n].validateFiveFold();
+			//Main.writeln("  bin="+n+" roc="+binModels[n].getROCAUC());
+		});
+		models = binModels;
+		final ScoringTable compiled = scoring = new ScoringTable(binModels);
 
-		for (int n = 0; n < num; n++)
+		// validation matrix: mapping is [want][got]; predictions are made in parallel chunks, then tallied
+		final int[] gotidx = new int[num];
+		runParallel((num + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK, chunk ->
 		{
-			int best = -1;
-			double highest = Double.NEGATIVE_INFINITY;
-			for (int i = 0; i < nbins; i++)
+			double[] scaled = new double[nbins];
+			for (int n = chunk * PARALLEL_CHUNK, end = Math.min(num, n + PARALLEL_CHUNK); n < end; n++)
 			{
-				IAtomContainer mol = entries.get(n).mol;
-				double v = models[i].scalePredictor(models[i].predict(mol));
-				if (v > highest)
+				int best = -1;
+				double highest = Double.NEGATIVE_INFINITY;
+				compiled.score(fplist.get(n), scaled);
+				for (int i = 0; i < nbins; i++)
 				{
-					best = i;
-					highest = v;
+					double v = scaled[i];
+					if (v > highest)
+					{
+						best = i;
+						highest = v;
+					}
 				}
+				gotidx[n] = best;
 			}
-			matrix[binidx[n]][best]++;
-		}
+		});
+
+		matrix = new int[nbins][];
+		for (int n = 0; n < nbins; n++) matrix[n] = new int[nbins];
+		for (int n = 0; n < num; n++) matrix[binidx[n]][gotidx[n]]++;
 
 		//for (int n=0;n<nbins;n++) Main.writeln(Arrays.toString(matrix[n]));
 	}
@@ -247,15 +386,13 @@ public class CompositeModel
 	{
 		final int num = entries.size();
 		if (num == 0) throw new ModelException("No entries provided.");
+		fillFingerprints(entries);
+		ensureValueIndex();
 
 		// obtain a reasonable subset: this should be small enough that building a model for every possible permutation is
 		// not a rate limiting performance issue
 		int[] subset;
-		if (num > CLUSTER_SUBSIZE)
-		{
-			GreedyLinearCluster glc = new GreedyLinearCluster(entries,CLUSTER_SUBSIZE);
-			subset = glc.calculate();
-		}
+		if (num > CLUSTER_SUBSIZE) subset = selectSubset(entries, CLUSTER_SUBSIZE);
 		else
 		{
 			subset = new int[num];
@@ -275,9 +412,17 @@ public class CompositeModel
 
 		if (ncuts < minBins) throw new ModelException("Unable to find reasonable number of cut points.");
 
-		// compute a ROC score for each of the putative cutpoints
-		float[] integrals = new float[ncuts];
-		for (int n = 0; n < ncuts; n++) integrals[n] = sampleBayesianROC(subset, cuts.get(n));
+		// compute a ROC score for each of the putative cutpoints: these are in ascending order, so they can be swept through
+		// incrementally, rather than building a new model each time; consecutive runs of cuts are swept in parallel
+		final CutpointSweep sweep = new CutpointSweep(entries, subset);
+		final float[] integrals = new float[ncuts];
+		final List<Double> sweepCuts = cuts;
+		final int nsweep = ncuts;
+		runParallel((ncuts + SWEEP_CHUNK - 1) / SWEEP_CHUNK, chunk ->
+		{
+			final int from = chunk * SWEEP_CHUNK;
+			sweep.calculate(sweepCuts, from, Math.min(nsweep, from + SWEEP_CHUNK), integrals);
+		});
 		float imin = integrals[0], imax = imin;
 		for (int n = 1; n < ncuts; n++)
 		{
@@ -319,13 +464,8 @@ public class CompositeModel
 		int minBinSize = (int) Math.ceil(MIN_BIN_FRACTION * entries.size());
 		for (int n = 0; n < ncuts; n++)
 		{
-			int above = 0, below = 0;
 			final float cutval = cuts.get(n).floatValue();
-			for (Entry e : entries)
-			{
-				if (e.val >= cutval) above++;
-				else below++;
-			}
+			final int below = countBelow(cutval), above = num - below;
 
 			if (above < minBinSize || below < minBinSize) // rare, but it happens
 			{
@@ -381,7 +521,7 @@ public class CompositeModel
 		List<Double> candidates = new ArrayList<Double>();
 		for (int n = 1; n < ncuts && n < MAX_CANDIDATES; n++) candidates.add(cuts.get(sorted[n]));
 
-		iterativelyAddSegments(candidates);
+		iterativelyAddSegments(candidates, new HashMap<List<Double>, Float>());
 	}
 
 	// obtain information about models and validation
@@ -395,13 +535,14 @@ public class CompositeModel
 		return assignBins(segments);
 	}
 
-	public Bayesian getModel(int N)
+	public FingerprintBayesian getModel(int N)
 	{
-		return models[N];
+		return getModels()[N];
 	}
 
-	public Bayesian[] getModels()
+	public FingerprintBayesian[] getModels()
 	{
+		if (models == null && scoring != null) models = unpackModels(); // (loaded from file: recreated on demand)
 		return models;
 	}
 
@@ -437,39 +578,134 @@ public class CompositeModel
 	// winner, but other bins with comparable scores might be contenders
 	public float[] predictBins(IAtomContainer mol) throws CDKException
 	{
-		final int nbins = models.length;
-		float[] pred = new float[nbins];
-		for (int n = 0; n < nbins; n++)
+		return predictBins(calculateFingerprint(mol));
+	}
+
+	// as above, for a fingerprint that was already calculated (see calculateFingerprint(..))
+	public float[] predictBins(int[] fp)
+	{
+		return scoring.predict(fp);
+	}
+
+	// batch prediction: the molecules are fingerprinted (consulting the cache, if any) and scored in parallel chunks; the
+	// result is one array of bin predictions per molecule, in the same order; any molecule that is null gets a null result
+	public float[][] predictBins(List<IAtomContainer> mols)
+	{
+		final int num = mols.size();
+		final int[][] fplist = new int[num][];
+		runParallel((num + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK, chunk ->
 		{
-			pred[n] = (float) models[n].scalePredictor(models[n].predict(mol));
-		}
+			for (int n = chunk * PARALLEL_CHUNK, end = Math.min(num, n + PARALLEL_CHUNK); n < end; n++)
+			{
+				IAtomContainer mol = mols.get(n);
+				if (mol != null) fplist[n] = obtainFingerprint(mol);
+			}
+		});
+		return predictBins(fplist);
+	}
+
+	// as above, for fingerprints that were already calculated; likewise, null fingerprints get null results
+	public float[][] predictBins(int[][] fplist)
+	{
+		final int num = fplist.length;
+		final float[][] pred = new float[num][];
+		runParallel((num + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK, chunk ->
+		{
+			for (int n = chunk * PARALLEL_CHUNK, end = Math.min(num, n + PARALLEL_CHUNK); n < end; n++) if (fplist[n] != null) pred[n] = scoring.predict(fplist[n]);
+		});
 		return pred;
 	}
 
+	// persistence: the model is written in a compact binary format, which can be loaded quickly for prediction purposes,
+	// and optionally a human-readable JSON summary (see ModelFile); the training entries are not included
+	public void save(File file) throws IOException
+	{
+		if (scoring == null) throw new ModelException("Model has not been calculated.");
+		ModelFile.write(this, file);
+	}
+
+	public void saveSummary(File file) throws IOException
+	{
+		if (scoring == null) throw new ModelException("Model has not been calculated.");
+		ModelFile.writeSummary(this, file);
+	}
+
+	public static CompositeModel load(File file) throws IOException
+	{
+		return ModelFile.read(file);
+	}
+
 	// ------------ private methods ------------
 
-	// for the given subset (by index) and threshold for activity, build a Bayesian model and return its ROC integral
-	private float sampleBayesianROC(int[] subset, double threshold) throws CDKException
+	// recreates the per-bin models from the scoring table, which is all there is for a model that was loaded from a file
+	private FingerprintBayesian[] unpackModels()
 	{
-		Bayesian bayes = new Bayesian(CircularFingerprinter.CLASS_ECFP6,0);
-		for (int i : subset)
+		final int nbins = scoring.numBins();
+		FingerprintBayesian[] list = new FingerprintBayesian[nbins];
+		for (int b = 0; b < nbins; b++)
 		{
-			Entry e = entries.get(i);
-			bayes.addMolecule(e.mol, e.val >= threshold);
+			list[b] = new FingerprintBayesian(scoring.getContributions(b), scoring.getLowThreshold(b), scoring.getHighThreshold(b),
+											  rocAUC == null ? Double.NaN : rocAUC[b], rocType == null ? null : rocType[b]);
 		}
-		bayes.build();
-		bayes.validateLeaveOneOut();
-		return (float) bayes.getROCAUC();
+		return list;
 	}
 
-	// similar to above, but takes two pre-formed partitions as arbitrary true/false
-	private float sampleBayesianROC(List<Entry> ptn1, List<Entry> ptn2) throws CDKException
+	// converts CDK models into the native form
+	private static FingerprintBayesian[] adoptModels(Bayesian[] models)
 	{
-		Bayesian bayes = new Bayesian(CircularFingerprinter.CLASS_ECFP6,0);
-		for (Entry e : ptn1) bayes.addMolecule(e.mol, false);
-		for (Entry e : ptn2) bayes.addMolecule(e.mol, true);
-		bayes.build();
-		bayes.validateLeaveOneOut();
+		FingerprintBayesian[] list = new FingerprintBayesian[models.length];
+		for (int n = 0; n < models.length; n++) list[n] = FingerprintBayesian.fromBayesian(models[n]);
+		return list;
+	}
+
+	// fingerprint for a molecule, from the cache if possible
+	private int[] obtainFingerprint(IAtomContainer mol)
+	{
+		try
+		{
+			if (fpcache == null) return calculateFingerprint(mol);
+			long key;
+			try {key = FingerprintCache.structureHash(mol);}
+			catch (CDKException ex) {return calculateFingerprint(mol);} // (no canonical form, so it can't be cached)
+			int[] fp = fpcache.get(key);
+			if (fp == null) fpcache.put(key, fp = calculateFingerprint(mol));
+			return fp;
+		}
+		catch (CDKException ex) {throw new ModelException(ex);}
+	}
+
+	// runs the task for each index from 0 to count-1 on the executor, and waits for all of them to finish; any exception
+	// thrown by one of the tasks is passed back to the caller
+	private void runParallel(int count, IntConsumer task)
+	{
+		if (count == 1)
+		{
+			task.accept(0);
+			return;
+		}
+
+		Executor exec = executor != null ? executor : ForkJoinPool.commonPool();
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+		for (int n = 0; n < count; n++)
+		{
+			final int idx = n;
+			futures[n] = CompletableFuture.runAsync(() -> task.accept(idx), exec);
+		}
+		try {CompletableFuture.allOf(futures).join();}
+		catch (CompletionException ex)
+		{
+			if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+			throw new ModelException(ex.getCause());
+		}
+	}
+
+	// for two pre-formed partitions with arbitrary true/false designations, build a Bayesian model and return its ROC integral
+	private float sampleBayesianROC(List<Entry> ptn1, List<Entry> ptn2)
+	{
+		FingerprintBayesian bayes = new FingerprintBayesian();
+		for (Entry e : ptn1) bayes.addFingerprint(e.fp, false);
+		for (Entry e : ptn2) bayes.addFingerprint(e.fp, true);
+		bayes.validateLeaveOneOut(); // (works off the counts: no need to build)
 		return (float) bayes.getROCAUC();
 	}
 
@@ -506,19 +742,20 @@ public class CompositeModel
 	}
 
 	// given that there is at least one segment already defined, contemplate adding a number of additional segments, and
-	// evaluate the effects of making these into bins
-	private void iterativelyAddSegments(List<Double> candidates) throws CDKException
+	// evaluate the effects of making these into bins; the score for a candidate depends only on the boundaries either side of
+	// it, so they are cached by {lower, candidate, upper}, and each level only rescores candidates in the bin that was split
+	private void iterativelyAddSegments(List<Double> candidates, Map<List<Double>, Float> scoreCache)
 	{
 		if (candidates.size() == 0 || segments.length >= maxBins - 1) return;
 
-		int minBinSize = (int) Math.ceil(MIN_BIN_FRACTION * entries.size());
-
-		int bestCandidate = -1;
-		double[] bestNewSeg = null;
-		float bestROC = 0;
+		final int nent = entries.size();
+		int minBinSize = (int) Math.ceil(MIN_BIN_FRACTION * nent);
 
 		//Main.writeln("Iteratively considering:"+candidates);
 
+		// compose the new segmentation for each candidate, and discard any that would create a too-small partition
+		List<double[]> newsegs = new ArrayList<>();
+		List<List<Double>> keys = new ArrayList<>();
 		for (int n = 0; n < candidates.size(); n++)
 		{
 			double cseg = candidates.get(n);
@@ -527,16 +764,17 @@ public class CompositeModel
 			for (; idx > 0 && newseg[idx - 1] > cseg; idx--) newseg[idx] = newseg[idx - 1];
 			newseg[idx] = cseg;
 
-			// partition the bins with the new segment, and check to see if any of them cause a too-small partition
-			int[][] bins = assignBins(newseg);
-			/*Main.write("  n="+n+" cseg="+cseg+" newseg="+Arrays.toString(newseg)+" bins=");
-			for (int i=0;i<bins.length;i++) Main.write((i>0 ? "," : "")+bins[i].length);
-			Main.writeln();*/
+			// check to see if partitioning with the new segment causes any bin to be too small: sizes come from the value index
 			boolean anyTooSmall = false;
-			for (int[] b : bins) if (b.length < minBinSize)
+			for (int i = 0, below = 0; i <= newseg.length; i++)
 			{
-				anyTooSmall = true;
-				break;
+				final int next = i < newseg.length ? countBelow(newseg[i]) : nent;
+				if (next - below < minBinSize)
+				{
+					anyTooSmall = true;
+					break;
+				}
+				below = next;
 			}
 			if (anyTooSmall)
 			{
@@ -545,52 +783,116 @@ public class CompositeModel
 				continue;
 			}
 
-			// look at the two new bins that were created by adding the segment, and see how well they separate
-			// from each other, by creating a tentative model
-			List<Entry> ptn1 = new ArrayList<Entry>(), ptn2 = new ArrayList<Entry>();
-			for (int i : bins[idx]) ptn1.add(entries.get(i));
-			for (int i : bins[idx + 1]) ptn2.add(entries.get(i));
-			if (ptn1.size() > CLUSTER_SUBSIZE)
-			{
-				GreedyLinearCluster glc = new GreedyLinearCluster(ptn1,CLUSTER_SUBSIZE);
-				List<Entry> ptn = new ArrayList<Entry>();
-				for (int i : glc.calculate()) ptn.add(ptn1.get(i));
-				ptn1 = ptn;
-			}
-			if (ptn2.size() > CLUSTER_SUBSIZE)
-			{
-				GreedyLinearCluster glc = new GreedyLinearCluster(ptn2,CLUSTER_SUBSIZE);
-				List<Entry> ptn = new ArrayList<Entry>();
-				for (int i : glc.calculate()) ptn.add(ptn2.get(i));
-				ptn1 = ptn;
-			}
-			float roc = sampleBayesianROC(ptn1, ptn2);
+			double lower = idx == 0 ? Double.NEGATIVE_INFINITY : newseg[idx - 1];
+			double upper = idx == newseg.length - 1 ? Double.POSITIVE_INFINITY : newseg[idx + 1];
+			newsegs.add(newseg);
+			keys.add(Arrays.asList(lower, cseg, upper));
+		}
 
-			if (bestCandidate < 0 || roc > bestROC)
-			{
-				bestCandidate = n;
-				bestNewSeg = newseg;
-				bestROC = roc;
-			}
+		// look at the two new bins that were created by adding each segment, and see how well they separate from each other,
+		// by creating a tentative model; the candidates are independent, so they are evaluated in parallel; note that each bin
+		// is reduced to its own subset (versions prior to parallelisation stored the reduced upper bin in place of the lower one,
+		// so any split with more than CLUSTER_SUBSIZE entries above it was scored as the upper bin against itself)
+		final int ncand = candidates.size();
+		final float[] rocs = new float[ncand];
+		final int[] todo = new int[ncand];
+		int ntodo = 0;
+		for (int n = 0; n < ncand; n++)
+		{
+			Float roc = scoreCache.get(keys.get(n));
+			if (roc != null) rocs[n] = roc; else todo[ntodo++] = n;
+		}
+		runParallel(ntodo, i ->
+		{
+			final List<Double> key = keys.get(todo[i]);
+			int[] lowerBin = entriesBetween(key.get(0), key.get(1)), upperBin = entriesBetween(key.get(1), key.get(2));
+			rocs[todo[i]] = sampleBayesianROC(clusterSubset(lowerBin), clusterSubset(upperBin));
+		});
+		for (int i = 0; i < ntodo; i++) scoreCache.put(keys.get(todo[i]), rocs[todo[i]]);
+
+		// pick the best, favouring the earliest in case of a tie
+		int bestCandidate = -1;
+		float bestROC = 0;
+		for (int n = 0; n < ncand; n++) if (bestCandidate < 0 || rocs[n] > bestROC)
+		{
+			bestCandidate = n;
+			bestROC = rocs[n];
 		}
 
 		if (bestCandidate < 0) return;
 		if (segments.length > 1 && bestROC < MIN_ROC_SPLIT) return;
-		segments = bestNewSeg;
+		segments = newsegs.get(bestCandidate);
 		candidates.remove(bestCandidate);
-		iterativelyAddSegments(candidates);
+		iterativelyAddSegments(candidates, scoreCache);
 	}
 
-	// given a set of putative segment boundaries, makes a list of bins and the entries that fall into them
+	// returns the entries for the given indices, reduced to a representative subset if there are too many of them
+	private List<Entry> clusterSubset(int[] idx)
+	{
+		List<Entry> ptn = new ArrayList<Entry>();
+		for (int i : idx) ptn.add(entries.get(i));
+		if (ptn.size() <= CLUSTER_SUBSIZE) return ptn;
+
+		List<Entry> subset = new ArrayList<Entry>();
+		for (int i : selectSubset(ptn, CLUSTER_SUBSIZE)) subset.add(ptn.get(i));
+		return subset;
+	}
+
+	// picks a diverse subset of the given size, spread out by value: small collections use the greedy linear clustering,
+	// while large ones switch to stratified MaxMin, which scales better
+	private int[] selectSubset(List<Entry> list, int size)
+	{
+		if (list.size() >= MAXMIN_THRESHOLD) return new StratifiedMaxMinCluster(list, size).calculate();
+		return new GreedyLinearCluster(list, size, foldBits).calculate();
+	}
+
+	// makes sure that the value-sorted index is available; the ordering is stable, so ties remain in entry order
+	private void ensureValueIndex()
+	{
+		if (valueOrder != null) return;
+		final int num = entries.size();
+		double[] values = new double[num];
+		for (int n = 0; n < num; n++) values[n] = entries.get(n).val;
+		int[] order = Util.idxSort(values);
+		sortedValues = new double[num];
+		for (int n = 0; n < num; n++) sortedValues[n] = values[order[n]];
+		valueOrder = order;
+	}
+
+	// number of entries with a value that is less than the threshold, by binary search of the sorted values
+	private int countBelow(double threshold)
+	{
+		int lo = 0, hi = sortedValues.length;
+		while (lo < hi)
+		{
+			final int mid = (lo + hi) >>> 1;
+			if (sortedValues[mid] < threshold) lo = mid + 1; else hi = mid;
+		}
+		return lo;
+	}
+
+	// indices of entries with lower <= value < upper, in ascending index order
+	private int[] entriesBetween(double lower, double upper)
+	{
+		final int start = countBelow(lower), end = Math.max(start, countBelow(upper));
+		int[] idx = Arrays.copyOfRange(valueOrder, start, end);
+		Arrays.sort(idx);
+		return idx;
+	}
+
+	// given a set of putative segment boundaries, makes a list of bins and the entries that fall into them; each bin is a
+	// contiguous run of the value-sorted index, delimited by binary search for the segments
 	private int[][] assignBins(double[] seg)
 	{
+		ensureValueIndex();
 		final int nbins = seg.length + 1, nent = entries.size();
 		int[] binidx = new int[nent], binsz = new int[nbins];
-		for (int n = 0; n < nent; n++)
+		for (int n = 0, start = 0; n < nbins; n++)
 		{
-			final double v = entries.get(n).val;
-			for (int i = 0; i < seg.length; i++) if (v >= seg[i]) binidx[n] = i + 1;
-			binsz[binidx[n]]++;
+			final int end = n < seg.length ? Math.max(start, countBelow(seg[n])) : nent;
+			for (int i = start; i < end; i++) binidx[valueOrder[i]] = n;
+			binsz[n] = end - start;
+			start = end;
 		}
 
 		int[][] bins = new int[nbins][];
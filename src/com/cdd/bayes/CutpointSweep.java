@@ -0,0 +1,136 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.lang.*;
+import java.util.*;
+
+/*
+ * Cutpoint sweep: a subordinate class for use by CompositeModel, which scores a series of candidate cutpoints for a
+ * subset of entries, where each cut defines a Bayesian model for which values >= cut are active. Rather than building a
+ * new model for each cut, the cuts are walked in ascending order, and the active counts are updated incrementally as
+ * entries drop below the threshold; the leave-one-out ROC integral is then computed directly from the counts. The
+ * results are the same as building a FingerprintBayesian for each cut and calling validateLeaveOneOut().
+ */
+class CutpointSweep
+{
+	private final int sz;
+	private double[] values;
+	private int[][] fpidx; // fingerprints, with hash codes remapped to dense vocabulary indices
+	private int[] totals; // number of entries containing each vocabulary index
+	private int[] valueOrder; // entry indices sorted by ascending value
+
+	// ------------ public methods ------------
+
+	public CutpointSweep(List<CompositeModel.Entry> entries, int[] subset)
+	{
+		sz = subset.length;
+		values = new double[sz];
+		fpidx = new int[sz][];
+
+		Map<Integer, Integer> vocab = new HashMap<>();
+		for (int n = 0; n < sz; n++)
+		{
+			CompositeModel.Entry e = entries.get(subset[n]);
+			values[n] = e.val;
+			fpidx[n] = new int[e.fp.length];
+			for (int i = 0; i < e.fp.length; i++)
+			{
+				Integer idx = vocab.get(e.fp[i]);
+				if (idx == null) vocab.put(e.fp[i], idx = vocab.size());
+				fpidx[n][i] = idx;
+			}
+		}
+		totals = new int[vocab.size()];
+		for (int[] fp : fpidx) for (int i : fp) totals[i]++;
+
+		Integer[] order = new Integer[sz];
+		for (int n = 0; n < sz; n++) order[n] = n;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer i1, Integer i2)
+			{
+				return Double.compare(values[i1], values[i2]);
+			}
+		});
+		valueOrder = new int[sz];
+		for (int n = 0; n < sz; n++) valueOrder[n] = order[n];
+	}
+
+	// returns the leave-one-out ROC integral for each of the cuts, which must be provided in ascending order
+	public float[] calculate(List<Double> cuts)
+	{
+		float[] integrals = new float[cuts.size()];
+		calculate(cuts, 0, cuts.size(), integrals);
+		return integrals;
+	}
+
+	// as above, but for just the range of cuts [from, to), which are written into the corresponding integrals; the state
+	// is local to each call, so separate ranges may be calculated concurrently
+	public void calculate(List<Double> cuts, int from, int to, float[] integrals)
+	{
+		// start with everything active, then drop entries out as the threshold increases
+		boolean[] active = new boolean[sz];
+		Arrays.fill(active, true);
+		int[] actives = Arrays.copyOf(totals, totals.length);
+		int numActive = sz, pos = 0;
+		double lastCut = Double.NEGATIVE_INFINITY;
+
+		for (int n = from; n < to; n++)
+		{
+			final double cut = cuts.get(n);
+			if (cut < lastCut) throw new ModelException("Cutpoints must be in ascending order.");
+			lastCut = cut;
+
+			for (; pos < sz && values[valueOrder[pos]] < cut; pos++)
+			{
+				final int i = valueOrder[pos];
+				active[i] = false;
+				numActive--;
+				for (int h : fpidx[i]) actives[h]--;
+			}
+
+			integrals[n] = (float) leaveOneOutROC(active, actives, numActive);
+		}
+	}
+
+	// ------------ private methods ------------
+
+	// estimates each entry by removing its own contribution from the counts, then integrates the ROC curve
+	private double leaveOneOutROC(boolean[] active, int[] actives, int numActive)
+	{
+		double[] estimates = new double[sz];
+		final int szN = sz - 1;
+		if (szN > 0) for (int n = 0; n < sz; n++)
+		{
+			final int dA = active[n] ? 1 : 0;
+			final double P_AT = (double) (numActive - dA) / szN;
+			double val = 0;
+			for (int h : fpidx[n]) if (totals[h] > 1) val += FingerprintBayesian.contribution(actives[h] - dA, totals[h] - 1, P_AT);
+			estimates[n] = val;
+		}
+		return FingerprintBayesian.calculateROC(estimates, active);
+	}
+}
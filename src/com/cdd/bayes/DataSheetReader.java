@@ -0,0 +1,237 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.util.*;
+
+import javax.vecmath.Point2d;
+import javax.xml.stream.*;
+
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.config.Elements;
+import org.openscience.cdk.interfaces.*;
+
+/*
+ * Streaming reader for the DataSheet XML format: the header is read first, to find out which columns there are, then each
+ * row is read as it is requested, so memory use does not depend on the size of the file. Each row is delivered in the same
+ * form as the SD file reader: the structure from the first molecule column (in SketchEl format) converted into a CDK
+ * molecule, with the values of the other columns as string properties, keyed by column name. Rows with no structure give
+ * an empty molecule. Behaves like IteratingSDFReader, so it can be used in its place.
+ */
+public class DataSheetReader implements Iterator<IAtomContainer>, Closeable
+{
+	private InputStream istr;
+	private XMLStreamReader xml;
+	private List<String> colNames = new ArrayList<>();
+	private List<String> colTypes = new ArrayList<>();
+	private int molColumn = -1;
+	private IAtomContainer nextMol = null;
+	private boolean finished = false;
+
+	private static final IChemObjectBuilder BUILDER = DefaultChemObjectBuilder.getInstance();
+
+	// ------------ public methods ------------
+
+	// starts reading from the stream, which is consumed up to the beginning of the content
+	public DataSheetReader(InputStream istr) throws IOException
+	{
+		this.istr = istr;
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true); // (CDATA sections & text come as one piece)
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		try
+		{
+			xml = factory.createXMLStreamReader(istr, ExecuteSession.SDF_CHARSET.name());
+			readHeader();
+		}
+		catch (XMLStreamException ex) {throw new IOException("Invalid DataSheet XML", ex);}
+	}
+
+	// true if the file looks like a DataSheet, by name (.ds, optionally with .gz)
+	public static boolean isDataSheet(File f)
+	{
+		String fn = f.getName().toLowerCase();
+		return fn.endsWith(".ds") || fn.endsWith(".ds.gz");
+	}
+
+	// columns, as defined by the header
+	public int numColumns() {return colNames.size();}
+	public String getColumnName(int idx) {return colNames.get(idx);}
+	public String getColumnType(int idx) {return colTypes.get(idx);}
+
+	// malformed XML is reported as UncheckedIOException, since the iterator interface does not allow checked exceptions
+	public boolean hasNext()
+	{
+		if (nextMol == null && !finished)
+		{
+			try {nextMol = readRow();}
+			catch (XMLStreamException ex) {throw new UncheckedIOException(new IOException("Invalid DataSheet XML", ex));}
+			if (nextMol == null) finished = true;
+		}
+		return nextMol != null;
+	}
+
+	public IAtomContainer next()
+	{
+		if (!hasNext()) throw new NoSuchElementException();
+		IAtomContainer mol = nextMol;
+		nextMol = null;
+		return mol;
+	}
+
+	public void close() throws IOException
+	{
+		try {xml.close();}
+		catch (XMLStreamException ex) {} // (closing anyway)
+		istr.close();
+	}
+
+	// converts a molecule in SketchEl format into the CDK equivalent; returns null if it could not be interpreted
+	public static IAtomContainer parseSketchEl(String text)
+	{
+		String[] lines = text.trim().split("\r?\n");
+		if (lines.length == 0 || !lines[0].startsWith("SketchEl!(")) return null;
+		String[] counts = lines[0].substring(10, lines[0].indexOf(')') < 0 ? lines[0].length() : lines[0].indexOf(')')).split(",");
+		if (counts.length != 2) return null;
+
+		try
+		{
+			final int natoms = Integer.parseInt(counts[0].trim()), nbonds = Integer.parseInt(counts[1].trim());
+			if (lines.length < 1 + natoms + nbonds) return null;
+			IAtomContainer mol = BUILDER.newInstance(IAtomContainer.class);
+
+			// atoms: {el}={x},{y};{charge},{unpaired}[,i{hydrogens}|e{hydrogens}][,m{mass}]...
+			for (int n = 0; n < natoms; n++)
+			{
+				String line = lines[1 + n];
+				int eq = line.indexOf('='), semi = line.indexOf(';');
+				if (eq < 0 || semi < eq) return null;
+				String el = line.substring(0, eq);
+				String[] xy = line.substring(eq + 1, semi).split(","), bits = line.substring(semi + 1).split(",");
+
+				IAtom atom;
+				Elements elem = Elements.ofString(el);
+				if (elem == Elements.Unknown) atom = BUILDER.newInstance(IPseudoAtom.class, el);
+				else
+				{
+					atom = BUILDER.newInstance(IAtom.class, elem.symbol());
+					atom.setAtomicNumber(elem.number());
+				}
+				atom.setPoint2d(new Point2d(Double.parseDouble(xy[0]), Double.parseDouble(xy[1])));
+				atom.setFormalCharge(bits.length > 0 ? Integer.parseInt(bits[0]) : 0);
+				for (int i = 2; i < bits.length; i++) if (bits[i].length() > 1)
+				{
+					char ch = bits[i].charAt(0);
+					if (ch == 'i' || ch == 'e') atom.setImplicitHydrogenCount(Integer.parseInt(bits[i].substring(1)));
+					else if (ch == 'm') atom.setMassNumber(Integer.parseInt(bits[i].substring(1)));
+				}
+				mol.addAtom(atom);
+			}
+
+			// bonds: {from}-{to}={order},{type}, where type is 0=normal, 1=wedge, 2=hash, 3=unknown
+			for (int n = 0; n < nbonds; n++)
+			{
+				String line = lines[1 + natoms + n];
+				int dash = line.indexOf('-'), eq = line.indexOf('=');
+				if (dash < 0 || eq < dash) return null;
+				final int bfr = Integer.parseInt(line.substring(0, dash)) - 1, bto = Integer.parseInt(line.substring(dash + 1, eq)) - 1;
+				String[] bits = line.substring(eq + 1).split(",");
+				final int order = Integer.parseInt(bits[0]), type = bits.length > 1 ? Integer.parseInt(bits[1]) : 0;
+				if (bfr < 0 || bfr >= natoms || bto < 0 || bto >= natoms) return null;
+
+				IBond.Order bo = order == 1 ? IBond.Order.SINGLE : order == 2 ? IBond.Order.DOUBLE :
+								 order == 3 ? IBond.Order.TRIPLE : order == 4 ? IBond.Order.QUADRUPLE : IBond.Order.UNSET;
+				IBond bond = BUILDER.newInstance(IBond.class, mol.getAtom(bfr), mol.getAtom(bto), bo);
+				if (type == 1) bond.setStereo(IBond.Stereo.UP);
+				else if (type == 2) bond.setStereo(IBond.Stereo.DOWN);
+				else if (type == 3) bond.setStereo(IBond.Stereo.UP_OR_DOWN);
+				mol.addBond(bond);
+			}
+			return mol;
+		}
+		catch (NumberFormatException | IndexOutOfBoundsException ex) {return null;}
+	}
+
+	// ------------ private methods ------------
+
+	// reads up to the beginning of the content section, noting the columns along the way
+	private void readHeader() throws XMLStreamException, IOException
+	{
+		while (xml.hasNext())
+		{
+			if (xml.next() != XMLStreamConstants.START_ELEMENT) continue;
+			String tag = xml.getLocalName();
+			if (tag.equals("Column"))
+			{
+				String name = xml.getAttributeValue(null, "name"), type = xml.getAttributeValue(null, "type");
+				if (molColumn < 0 && "molecule".equals(type)) molColumn = colNames.size();
+				colNames.add(name == null ? "" : name);
+				colTypes.add(type == null ? "" : type);
+			}
+			else if (tag.equals("Content")) return;
+		}
+		throw new IOException("DataSheet has no content section.");
+	}
+
+	// reads the next row, or returns null if there are none left
+	private IAtomContainer readRow() throws XMLStreamException
+	{
+		// find the next row
+		while (true)
+		{
+			if (!xml.hasNext()) return null;
+			final int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("Row")) break;
+			if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("Content")) return null;
+		}
+
+		// collect the cells, which are identified by 1-based column number
+		String[] cells = new String[colNames.size()];
+		while (xml.hasNext())
+		{
+			final int event = xml.next();
+			if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("Row")) break;
+			if (event != XMLStreamConstants.START_ELEMENT || !xml.getLocalName().equals("Cell")) continue;
+			int col = -1;
+			try {col = Integer.parseInt(xml.getAttributeValue(null, "id")) - 1;}
+			catch (NumberFormatException ex) {}
+			String text = xml.getElementText();
+			if (col >= 0 && col < cells.length) cells[col] = text;
+		}
+
+		IAtomContainer mol = null;
+		if (molColumn >= 0 && cells[molColumn] != null && cells[molColumn].length() > 0) mol = parseSketchEl(cells[molColumn]);
+		if (mol == null) mol = BUILDER.newInstance(IAtomContainer.class);
+		for (int n = 0; n < cells.length; n++)
+		{
+			if (n == molColumn || cells[n] == null || cells[n].length() == 0) continue;
+			mol.setProperty(colNames.get(n), cells[n]);
+		}
+		return mol;
+	}
+}
@@ -27,7 +27,11 @@ package com.cdd.bayes;
 import com.cdd.bayes.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
 import java.io.*;
+import java.nio.charset.*;
 
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.io.SDFWriter;
@@ -45,6 +49,31 @@ public class ExecuteSession
 	private Session session;
 	private List<CompositeModel.Entry> training = new ArrayList<>(), testing = new ArrayList<>(), prediction = new ArrayList<>();
 	private CompositeModel model = null;
+	private FingerprintCache fpcache = null;
+
+	public static final Charset SDF_CHARSET = StandardCharsets.UTF_8; // encoding for reading & writing SD files
+
+	private static final int STREAM_BATCH = 256; // molecules per batch, when streaming predictions
+	private static final int STREAM_BUFFER = 1 << 16; // output buffer size, when streaming predictions
+	private static final int STREAM_CACHE_FLUSH = 50000; // new fingerprints to hold before writing them to the cache, when streaming
+	private static final int GZIP_BUFFER = 1 << 18; // buffer size for compressed input & output
+	private static final long HANDOFF_POLL = 100; // milliseconds between checks on the writer, when the prediction queue is full
+
+	// a batch of molecules with their predictions, in transit from the scoring stage to the writer; for raw output, the
+	// source records are passed along instead of the molecules
+	private static final class PredictedBatch
+	{
+		List<IAtomContainer> mols;
+		float[][] pred;
+		SDFRecordIndex source = null;
+		int[] records = null;
+
+		PredictedBatch(List<IAtomContainer> mols, float[][] pred)
+		{
+			this.mols = mols;
+			this.pred = pred;
+		}
+	}
 
 	// ------------ public methods ------------
 	
@@ -65,15 +94,22 @@ public class ExecuteSession
 	{
 		Session.DataFile df = session.getFile(idx);
 		df.molecules.clear();
+		df.index = null;
 		if (df.filename == null || df.filename.length() == 0) return;
 		File f = new File(df.filename);
 		if (!f.exists()) throw new IOException("File not found: " + df.filename);
 		if (!f.canRead()) throw new IOException("Access denied: " + df.filename);
 		
-        SDFixerHack hack = new SDFixerHack(new BufferedReader(new FileReader(f)));
-        IteratingSDFReader rdr = new IteratingSDFReader(hack, DefaultChemObjectBuilder.getInstance());
-        while (rdr.hasNext()) df.molecules.add(rdr.next());
-        rdr.close();
+        // DataSheets & compressed files can't be mapped, so they are read sequentially (with decompression in the background)
+        if (DataSheetReader.isDataSheet(f) || isCompressed(f))
+        {
+        	Iterator<IAtomContainer> iter = openMolecules(f);
+        	try {while (iter.hasNext()) df.molecules.add(iter.next());}
+        	catch (UncheckedIOException ex) {throw ex.getCause();} // (DataSheetReader can't throw IOException from hasNext)
+        	finally {((Closeable) iter).close();}
+        }
+        else if (session.isLazyLoad() || (session.isRawOutput() && df.type == Session.FILE_PREDICTION)) df.index = new SDFRecordIndex(f, ForkJoinPool.commonPool());
+        else df.molecules.addAll(new ParallelSDFLoader(f).load(ForkJoinPool.commonPool()));
 	}
 	
 	// spool the loaded datafiles into the respective three partitions
@@ -96,6 +132,18 @@ public class ExecuteSession
 				else if (df.type == Session.FILE_TESTING) testing.add(entry);
 				else if (df.type == Session.FILE_PREDICTION) prediction.add(entry);
 			}
+
+			// indexed files: the value comes straight from the record text, so rows without one are rejected unparsed
+			for (int n = 0, num = df.index == null ? 0 : df.index.size(); n < num; n++)
+			{
+				CompositeModel.Entry entry = new CompositeModel.Entry();
+				entry.source = df.index;
+				entry.record = n;
+				if (df.type != Session.FILE_PREDICTION && !parseValue(entry, df.index.getField(n, df.field))) continue;
+				if (df.type == Session.FILE_TRAINING) training.add(entry);
+				else if (df.type == Session.FILE_TESTING) testing.add(entry);
+				else if (df.type == Session.FILE_PREDICTION) prediction.add(entry);
+			}
 		}
 		
 		// if necessary, push some entries from training to testing
@@ -112,74 +160,362 @@ public class ExecuteSession
 		}
 	}
 	
+	// snapshots: the partitioned training & testing sets are written with their values & fingerprints (which are calculated
+	// first, if necessary), and can be read back in place of loading & partitioning the data files; entries whose structure
+	// cannot be parsed are dropped, since they would be left out of any model anyway
+	public void saveSnapshot(String filename) throws IOException
+	{
+		CompositeModel fpmodel = new CompositeModel();
+		fpmodel.setFingerprintCache(obtainCache());
+		fpmodel.fillFingerprints(training);
+		fpmodel.fillFingerprints(testing);
+		if (fpcache != null) fpcache.flush();
+		training.removeIf(e -> e.fp == null);
+		testing.removeIf(e -> e.fp == null);
+		TrainingSnapshot.write(new File(filename), training, testing);
+	}
+
+	public void loadSnapshot(String filename) throws IOException
+	{
+		TrainingSnapshot snapshot = new TrainingSnapshot(new File(filename));
+		training.clear();
+		training.addAll(snapshot.getTraining());
+		testing.clear();
+		testing.addAll(snapshot.getTesting());
+	}
+
 	// stuff all the training set entries into the model and build it
-	public void buildModel(double[] segments) throws CDKException
+	public void buildModel(double[] segments) throws CDKException, IOException
 	{
 		model = new CompositeModel();
-		for (CompositeModel.Entry e : training) model.addEntry(e);
+		model.setFingerprintCache(obtainCache());
+		model.addEntries(training);
+		if (fpcache != null) fpcache.flush();
 		if (segments == null) model.determineSegments(); else model.setSegments(segments);
 		model.calculate();
 	}
 	
-	// performs predictions and then saves the results
-	public void saveOutput(String filename, String field) throws CDKException, IOException
+	// model persistence: saving writes the binary model file, plus a human-readable summary alongside it (same name with .json
+	// appended); loading replaces the current model, which is then ready for prediction without any training data
+	public void saveModel(String filename) throws IOException
 	{
-		FileWriter wtr = new FileWriter(filename);
-		@SuppressWarnings("resource") // (complains sdf not closed, even though this is untrue; bug in CDK?)
-		SDFWriter sdf = new SDFWriter(wtr);
+		model.save(new File(filename));
+		model.saveSummary(new File(filename + ".json"));
+	}
 
-		double[] segments = model.getSegments();
-		boolean invertDir = model.getMinVal() > 0 && model.getMaxVal() / model.getMinVal() > 15;
+	public void loadModel(String filename) throws IOException
+	{
+		model = CompositeModel.load(new File(filename));
+	}
 
-		for (CompositeModel.Entry e : prediction)
-		{
-			IAtomContainer mol = null;
-			try {mol = e.mol.clone();}
-			catch (CloneNotSupportedException ex) {throw new CDKException("Clone failed", ex);}
+	// performs predictions and then saves the results; in raw output mode, records that came from an indexed file are copied
+	// verbatim, rather than being regenerated from the molecule; entries whose structure cannot be parsed are left out
+	public void saveOutput(String filename, String field) throws CDKException, IOException
+	{
+		model.setFingerprintCache(obtainCache());
+		model.fillFingerprints(prediction);
+		if (fpcache != null) fpcache.flush();
 
-			float[] pred = model.predictBins(mol);
-			int best = 0;
-			for (int n = 1; n < pred.length; n++) if (pred[n] > pred[best]) best = n;
+		final int npred = prediction.size();
+		int[][] fplist = new int[npred][];
+		for (int n = 0; n < npred; n++) fplist[n] = prediction.get(n).fp;
+		float[][] predictions = model.predictBins(fplist);
 
-			// score = best * (best / sum of all): the "best" value is a probabiliy (0..1), and if all other probabilities are zero, it can stand as-is; to the extent
-			//									   that other options are viable, it decreases proportionately
-			float score = Math.max(0, Math.min(1, pred[best]));
-			if (score > 0)
+		boolean raw = session.isRawOutput();
+		for (CompositeModel.Entry e : prediction) if (e.source == null) raw = false;
+		if (raw)
+		{
+			try (RawSDFWriter rsw = new RawSDFWriter(openOutput(filename)))
 			{
-				float denom = 0;
-				for (float f : pred) denom += Math.max(0, Math.min(1, f));
-				score *= score / denom;
+				for (int i = 0; i < npred; i++)
+				{
+					CompositeModel.Entry e = prediction.get(i);
+					if (predictions[i] == null) continue;
+					rsw.write(e.source.getRecord(e.record), predictionFields(predictions[i], field));
+				}
 			}
+			return;
+		}
 
-			double min = best == 0 ? model.getMinVal() : segments[best - 1];
-			double max = best == segments.length ? model.getMaxVal() : segments[best];
-			String txtRange = Util.formatDouble(invertDir ? max : min, 4) + " .. " + Util.formatDouble(invertDir ? min : max, 4);
-			String txtScore = String.format("%.1f%%", 100 * score);
-				
-			//Map<Object, Object> props = new HashMap<>(mol.getProperties());
-			Map<Object, Object> props = new TreeMap<>();
-			for (Object key : mol.getProperties().keySet()) {Object val = mol.getProperties().get(key); if (val != null) props.put(key, val);}
-			
-			props.put(field + "_Range", txtRange);
-			props.put(field + "_Score", txtScore);
-			
-			for (int n = 0; n < pred.length; n++)
+		Writer wtr = new OutputStreamWriter(openOutput(filename), SDF_CHARSET);
+		@SuppressWarnings("resource") // (complains sdf not closed, even though this is untrue; bug in CDK?)
+		SDFWriter sdf = new SDFWriter(wtr);
+
+		for (int i = 0; i < npred; i++)
+		{
+			CompositeModel.Entry e = prediction.get(i);
+			if (predictions[i] == null) continue;
+			IAtomContainer mol = e.getMolecule();
+			if (mol == null) continue;
+			if (mol == e.mol)
 			{
-				double bmin = n == 0 ? model.getMinVal() : segments[n - 1];
-				double bmax = n == segments.length ? model.getMaxVal() : segments[n];
-				props.put(field + "_Bin" + n + "_" + Util.formatDouble(invertDir ? bmax : bmin, 4) + ".." + Util.formatDouble(invertDir ? bmin : bmax, 4), Util.formatDouble(pred[n], 4));
+				try {mol = e.mol.clone();}
+				catch (CloneNotSupportedException ex) {throw new CDKException("Clone failed", ex);}
 			}
-			
-			mol.setProperties(props);
 
+			annotateMolecule(mol, predictions[i], field);
 			sdf.write(mol);
 		}
 		
         sdf.close();
 	}
 	
+	// performs predictions for all of the prediction files, reading them directly from disk rather than from the loaded
+	// molecules, and writes the results as it goes: the molecules are read in batches, which are fingerprinted & scored in
+	// parallel, and written out in the original order by a separate thread; the number of batches in flight is bounded, so
+	// the reader waits for the writer to catch up, and memory use does not depend on the size of the input; in raw output
+	// mode, the files are indexed, the structures are parsed as part of each batch, and the original records are written
+	public void streamOutput(String filename, String field) throws CDKException, IOException
+	{
+		final boolean rawMode = session.isRawOutput();
+		final FingerprintCache cache = obtainCache();
+		model.setFingerprintCache(cache);
+		Executor exec = model.getExecutor() != null ? model.getExecutor() : ForkJoinPool.commonPool();
+		final BlockingQueue<CompletableFuture<PredictedBatch>> queue = new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors());
+		final CompletableFuture<PredictedBatch> endMarker = CompletableFuture.completedFuture(null);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		// writer: takes each batch in turn, waits for it to be ready, and writes it out; in case of failure, keeps draining
+		// the queue so that the reader never blocks indefinitely; batches that come from an index are copied verbatim, others
+		// (e.g. compressed or DataSheet input, which can't be indexed) are annotated and regenerated, as for saveOutput; each
+		// kind of writer is created when first needed, and flushed before switching to the other one; new fingerprints are
+		// written to the cache every so often, so that they don't pile up in memory for the duration
+		Thread writer = new Thread(() ->
+		{
+			try (OutputStream ostr = openOutput(filename))
+			{
+				RawSDFWriter rsw = null;
+				Writer wtr = null;
+				SDFWriter sdf = null;
+				while (true)
+				{
+					CompletableFuture<PredictedBatch> future = queue.take();
+					if (future == endMarker) break;
+					if (failure.get() != null) continue;
+					try
+					{
+						PredictedBatch batch = future.join();
+						if (batch.source != null)
+						{
+							if (wtr != null) wtr.flush();
+							if (rsw == null) rsw = new RawSDFWriter(ostr);
+							for (int n = 0; n < batch.pred.length; n++) rsw.write(batch.source.getRecord(batch.records[n]), predictionFields(batch.pred[n], field));
+						}
+						else
+						{
+							if (rsw != null) rsw.flush();
+							if (sdf == null) sdf = new SDFWriter(wtr = new BufferedWriter(new OutputStreamWriter(ostr, SDF_CHARSET), STREAM_BUFFER));
+							for (int n = 0; n < batch.pred.length; n++)
+							{
+								if (batch.pred[n] == null) continue;
+								IAtomContainer mol = batch.mols.get(n);
+								annotateMolecule(mol, batch.pred[n], field);
+								sdf.write(mol);
+							}
+						}
+						if (cache != null && cache.numPending() >= STREAM_CACHE_FLUSH) cache.flush();
+					}
+					catch (Throwable ex) {failure.compareAndSet(null, ex);}
+				}
+				if (rsw != null) rsw.flush();
+				if (wtr != null) wtr.flush();
+			}
+			catch (Throwable ex) {failure.compareAndSet(null, ex);}
+		}, "PredictionWriter");
+		writer.start();
+
+		// reader: runs on the calling thread, handing off each batch to be fingerprinted & scored; if the writer stops, so does
+		// the reader, and the writer's exception is thrown
+		try
+		{
+			for (Session.DataFile df : session.fileIter())
+			{
+				if (df.type != Session.FILE_PREDICTION || df.filename == null || df.filename.length() == 0) continue;
+				File f = new File(df.filename);
+				if (rawMode && !DataSheetReader.isDataSheet(f) && !isCompressed(f))
+				{
+					final SDFRecordIndex index = new SDFRecordIndex(f, exec);
+					for (int n = 0; n < index.size() && failure.get() == null; n += STREAM_BATCH)
+					{
+						final int from = n, to = Math.min(index.size(), n + STREAM_BATCH);
+						handOff(queue, CompletableFuture.supplyAsync(() -> predictRecords(index, from, to), exec), writer, failure);
+					}
+					continue;
+				}
+				Iterator<IAtomContainer> iter = openMolecules(f);
+				try
+				{
+					List<IAtomContainer> mols = new ArrayList<>(STREAM_BATCH);
+					while (failure.get() == null)
+					{
+						boolean more = iter.hasNext();
+						if (more) mols.add(iter.next());
+						if (mols.size() == STREAM_BATCH || (!more && mols.size() > 0))
+						{
+							final List<IAtomContainer> batch = mols;
+							handOff(queue, CompletableFuture.supplyAsync(() -> new PredictedBatch(batch, model.predictBins(batch)), exec), writer, failure);
+							mols = new ArrayList<>(STREAM_BATCH);
+						}
+						if (!more) break;
+					}
+				}
+				catch (UncheckedIOException ex) {throw ex.getCause();}
+				finally {((Closeable) iter).close();}
+			}
+		}
+		catch (InterruptedException ex) {throw new InterruptedIOException("Prediction streaming interrupted");}
+		finally
+		{
+			try
+			{
+				handOff(queue, endMarker, writer, failure);
+				writer.join();
+			}
+			catch (InterruptedException ex) {throw new InterruptedIOException("Prediction streaming interrupted");}
+		}
+		if (cache != null) cache.flush();
+
+		Throwable ex = failure.get();
+		if (ex instanceof CompletionException && ex.getCause() != null) ex = ex.getCause();
+		if (ex instanceof IOException) throw (IOException) ex;
+		if (ex instanceof CDKException) throw (CDKException) ex;
+		if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+		if (ex != null) throw new IOException(ex);
+	}
+	
 	// ------------ private methods ------------
 
+	// gzip detection: input files are recognised by their magic number, regardless of name
+	public static boolean isCompressed(File f) throws IOException
+	{
+		try (InputStream in = new FileInputStream(f))
+		{
+			return in.read() == 0x1F && in.read() == 0x8B;
+		}
+	}
+
+	// opens a file for reading: if it is compressed, decompression runs on a separate thread, ahead of the consumer
+	public static InputStream openInput(File f) throws IOException
+	{
+		if (!isCompressed(f)) return new FileInputStream(f);
+		return new PrefetchInputStream(new GZIPInputStream(new FileInputStream(f), GZIP_BUFFER));
+	}
+
+	// opens a file for writing: compressed if the name ends with .gz
+	public static OutputStream openOutput(String filename) throws IOException
+	{
+		OutputStream out = new FileOutputStream(filename);
+		if (!filename.toLowerCase().endsWith(".gz")) return out;
+		return new BufferedOutputStream(new GZIPOutputStream(out, GZIP_BUFFER), GZIP_BUFFER);
+	}
+
+	// a molecule reader for the given file, which may be either SD or DataSheet format (possibly compressed); the iterator is
+	// also Closeable, and should be closed afterward
+	private static Iterator<IAtomContainer> openMolecules(File f) throws IOException
+	{
+		if (DataSheetReader.isDataSheet(f)) return new DataSheetReader(openInput(f));
+		return openReader(f);
+	}
+
+	// a molecule reader for the given file or stream, with the field workaround applied
+	private static IteratingSDFReader openReader(File f) throws IOException
+	{
+		return openReader(openInput(f));
+	}
+	static IteratingSDFReader openReader(InputStream in)
+	{
+		SDFixerHack hack = new SDFixerHack(in);
+		return new IteratingSDFReader(new InputStreamReader(hack, SDF_CHARSET), DefaultChemObjectBuilder.getInstance());
+	}
+
+	// adds a batch to the queue for the writer, waiting for space if necessary; if the writer thread is no longer running (e.g.
+	// the output file could not be opened), nothing is going to be taken from the queue, so rather than waiting forever, the
+	// failure is noted (unless the writer already did) and the batch is dropped
+	private static <T> void handOff(BlockingQueue<T> queue, T item, Thread writer, AtomicReference<Throwable> failure) throws InterruptedException
+	{
+		while (!queue.offer(item, HANDOFF_POLL, TimeUnit.MILLISECONDS))
+		{
+			if (writer.isAlive()) continue;
+			failure.compareAndSet(null, new IOException("Prediction writer stopped unexpectedly."));
+			return;
+		}
+	}
+
+	// parses & predicts a range of records, for raw output: any records that cannot be parsed are left out
+	private PredictedBatch predictRecords(SDFRecordIndex index, int from, int to)
+	{
+		List<IAtomContainer> mols = new ArrayList<>(to - from);
+		int[] records = new int[to - from];
+		for (int n = from; n < to; n++)
+		{
+			IAtomContainer mol = index.getMolecule(n);
+			if (mol == null) continue;
+			records[mols.size()] = n;
+			mols.add(mol);
+		}
+		PredictedBatch batch = new PredictedBatch(null, model.predictBins(mols));
+		batch.source = index;
+		batch.records = Arrays.copyOf(records, mols.size());
+		return batch;
+	}
+
+	// adds the prediction results to the molecule's fields: predicted range, overall score, and the value for each bin
+	private void annotateMolecule(IAtomContainer mol, float[] pred, String field)
+	{
+		//Map<Object, Object> props = new HashMap<>(mol.getProperties());
+		Map<Object, Object> props = new TreeMap<>();
+		for (Object key : mol.getProperties().keySet()) {Object val = mol.getProperties().get(key); if (val != null) props.put(key, val);}
+		props.putAll(predictionFields(pred, field));
+		mol.setProperties(props);
+	}
+
+	// the prediction results as field name/value pairs, in order
+	private Map<String, String> predictionFields(float[] pred, String field)
+	{
+		double[] segments = model.getSegments();
+		boolean invertDir = model.getMinVal() > 0 && model.getMaxVal() / model.getMinVal() > 15;
+
+		int best = 0;
+		for (int n = 1; n < pred.length; n++) if (pred[n] > pred[best]) best = n;
+
+		// score = best * (best / sum of all): the "best" value is a probabiliy (0..1), and if all other probabilities are zero, it can stand as-is; to the extent
+		//									   that other options are viable, it decreases proportionately
+		float score = Math.max(0, Math.min(1, pred[best]));
+		if (score > 0)
+		{
+			float denom = 0;
+			for (float f : pred) denom += Math.max(0, Math.min(1, f));
+			score *= score / denom;
+		}
+
+		double min = best == 0 ? model.getMinVal() : segments[best - 1];
+		double max = best == segments.length ? model.getMaxVal() : segments[best];
+		String txtRange = Util.formatDouble(invertDir ? max : min, 4) + " .. " + Util.formatDouble(invertDir ? min : max, 4);
+		String txtScore = String.format("%.1f%%", 100 * score);
+			
+		Map<String, String> fields = new LinkedHashMap<>();
+		fields.put(field + "_Range", txtRange);
+		fields.put(field + "_Score", txtScore);
+		
+		for (int n = 0; n < pred.length; n++)
+		{
+			double bmin = n == 0 ? model.getMinVal() : segments[n - 1];
+			double bmax = n == segments.length ? model.getMaxVal() : segments[n];
+			fields.put(field + "_Bin" + n + "_" + Util.formatDouble(invertDir ? bmax : bmin, 4) + ".." + Util.formatDouble(invertDir ? bmin : bmax, 4), Util.formatDouble(pred[n], 4));
+		}
+		
+		return fields;
+	}
+
+	// opens the fingerprint cache file, if the session asks for one (and it wasn't opened already)
+	private FingerprintCache obtainCache() throws IOException
+	{
+		String fn = session.getCacheFile();
+		if (fn == null || fn.length() == 0) return null;
+		if (fpcache == null) fpcache = new FingerprintCache(new File(fn));
+		return fpcache;
+	}
+
 	// given a molecule that may or may not have an accompanying field datum, returns an entry: or null if not able to get enough
 	// information out of it
 	private CompositeModel.Entry parseEntry(IAtomContainer mol, int type, String field)
@@ -188,14 +524,19 @@ public class ExecuteSession
 		entry.mol = mol;
 		if (type == Session.FILE_PREDICTION) return entry;
 		
-		Object obj = mol.getProperties().get(field);
-		if (obj == null || !(obj instanceof String)) return null;
+		return parseValue(entry, mol.getProperties().get(field)) ? entry : null;
+	}
+
+	// interprets the field value as a number, and stores it in the entry; returns false if it is missing or malformed
+	private static boolean parseValue(CompositeModel.Entry entry, Object obj)
+	{
+		if (obj == null || !(obj instanceof String)) return false;
 		String str = (String)obj;
 
         while (str.startsWith(">") || str.startsWith("<") || str.startsWith(" ")) str = str.substring(1);
         try {entry.val = Double.parseDouble(str);}
-        catch (NumberFormatException ex) {return null;}
-        return entry;
+        catch (NumberFormatException ex) {return false;}
+        return true;
 	}
 
 	/*
@@ -211,23 +552,114 @@ public class ExecuteSession
 	 *     >10
 	 *     
 	 * which will be parsed as was originally intended.
+	 *
+	 * The translation is done on raw bytes, since the characters of interest are all ASCII: the content is passed through in
+	 * bulk, and decoding is left to the reader (see SDF_CHARSET). Line terminators are normalised to LF, and the last line is
+	 * terminated if it was not already.
 	 */
 	public final static class SDFixerHack extends InputStream
 	{
-		private BufferedReader in;
-		private int pos = 0;
-		private byte[] buff = null;
+		private static final int BUFFER_SIZE = 1 << 16;
+
+		// line states: at the start; after a leading '>'; after a leading "> " (space withheld); anywhere else
+		private static final int LINE_START = 0, LINE_GT = 1, LINE_GTSPACE = 2, LINE_BODY = 3;
 
-		public SDFixerHack(BufferedReader in)
+		private InputStream in;
+		private byte[] inbuf = new byte[BUFFER_SIZE];
+		private int inpos = 0, inlen = 0;
+		private boolean eof = false;
+		private int state = LINE_START;
+		private boolean lastCR = false; // previous byte was CR, so an immediately following LF is dropped
+		private byte[] extra = new byte[2]; // output that didn't fit in the caller's buffer
+		private int extraPos = 0, extraLen = 0;
+
+		public SDFixerHack(InputStream in)
 		{
 			this.in = in;
 		}
 
 		public int read() throws IOException
 		{
-			if (buff == null || pos >= buff.length) grabNextLine();
-			if (buff == null) return -1;
-			return buff[pos++];
+			byte[] one = new byte[1];
+			int sz;
+			while ((sz = read(one, 0, 1)) == 0) {}
+			return sz < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0) return 0;
+			int p = off;
+			final int end = off + len;
+
+			while (p < end && extraPos < extraLen) b[p++] = extra[extraPos++];
+			if (extraPos >= extraLen) extraPos = extraLen = 0;
+
+			while (p < end)
+			{
+				if (inpos >= inlen)
+				{
+					if (eof || !fill())
+					{
+						finish();
+						while (p < end && extraPos < extraLen) b[p++] = extra[extraPos++];
+						break;
+					}
+				}
+
+				// bulk copy the rest of a line body, up to the next terminator
+				if (state == LINE_BODY && !lastCR)
+				{
+					int q = inpos;
+					final int qend = Math.min(inlen, inpos + (end - p));
+					while (q < qend && inbuf[q] != '\n' && inbuf[q] != '\r') q++;
+					if (q > inpos)
+					{
+						System.arraycopy(inbuf, inpos, b, p, q - inpos);
+						p += q - inpos;
+						inpos = q;
+						continue;
+					}
+				}
+
+				final byte ch = inbuf[inpos++];
+				if (lastCR)
+				{
+					lastCR = false;
+					if (ch == '\n') continue;
+				}
+				if (ch == '\n' || ch == '\r')
+				{
+					if (state == LINE_GTSPACE) p = emit(b, p, end, (byte)' ');
+					p = emit(b, p, end, (byte)'\n');
+					lastCR = ch == '\r';
+					state = LINE_START;
+				}
+				else if (state == LINE_START)
+				{
+					b[p++] = ch;
+					state = ch == '>' ? LINE_GT : LINE_BODY;
+				}
+				else if (state == LINE_GT)
+				{
+					if (ch == ' ') state = LINE_GTSPACE;
+					else
+					{
+						b[p++] = ch;
+						state = LINE_BODY;
+					}
+				}
+				else if (state == LINE_GTSPACE)
+				{
+					// "> <" is a field declaration, so the space stays; otherwise it gets dropped
+					if (ch == '<') p = emit(b, emit(b, p, end, (byte)' '), end, ch);
+					else b[p++] = ch;
+					state = LINE_BODY;
+				}
+				else b[p++] = ch;
+			}
+
+			return p == off && eof && extraPos >= extraLen ? -1 : p - off;
 		}
 
 		public void close() throws IOException
@@ -235,21 +667,36 @@ public class ExecuteSession
 			in.close();
 		}
 
-		// perform the translation, if necessary
-		private void grabNextLine() throws IOException
+		// ------------ private methods ------------
+
+		// pulls in the next block of raw content; returns false at the end of the stream
+		private boolean fill() throws IOException
 		{
-			String line = in.readLine();
-			if (line == null)
+			inpos = 0;
+			inlen = 0;
+			while (inlen == 0)
 			{
-				buff = null;
-				return;
+				int sz = in.read(inbuf, 0, inbuf.length);
+				if (sz < 0) {eof = true; return false;}
+				inlen = sz;
 			}
-			if (line.length() >= 3 && line.charAt(0) == '>' && line.charAt(1) == ' ' && line.charAt(2) != '<')
-			{
-				line = ">" + line.substring(2);
-			}
-			buff = (line + "\n").getBytes();
-			pos = 0;
+			return true;
+		}
+
+		// end of input: a withheld space is restored, and an unterminated last line gets its newline
+		private void finish()
+		{
+			if (state == LINE_GTSPACE) extra[extraLen++] = ' ';
+			if (state != LINE_START) extra[extraLen++] = '\n';
+			state = LINE_START;
+		}
+
+		// writes a byte to the output if there is room, otherwise holds it over for the next read
+		private int emit(byte[] b, int p, int end, byte ch)
+		{
+			if (p < end && extraPos >= extraLen) {b[p] = ch; return p + 1;}
+			extra[extraLen++] = ch;
+			return p;
 		}
 	}	
 }
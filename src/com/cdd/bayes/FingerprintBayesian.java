@@ -0,0 +1,309 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.lang.*;
+import java.util.*;
+
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.fingerprint.model.Bayesian;
+
+/*
+ * Fingerprint-native Laplacian-corrected Bayesian model: follows the same algorithm as the CDK Bayesian class (contributions,
+ * calibration & validation), except that the training and prediction inputs are lists of ECFP6 hash codes, rather than
+ * molecules. This means that the fingerprints only need to be calculated once per molecule, no matter how many models
+ * get built from them. Hash lists are expected to be sorted and unique, as made by CompositeModel.fillFingerprints(..).
+ */
+public class FingerprintBayesian
+{
+	protected Map<Integer, int[]> inHash = new HashMap<>(); // hash code: {#actives, #total}
+	protected List<int[]> training = new ArrayList<>();
+	protected List<Boolean> activity = new ArrayList<>();
+	protected int numActive = 0;
+
+	protected Map<Integer, Double> contribs = new HashMap<>(); // hash code: contribution
+	protected double lowThresh = 0, highThresh = 0, range = 0, invRange = 0; // calibration
+
+	protected double[] estimates = null; // validation predictions, one per training entry
+	protected double rocAUC = Double.NaN;
+	protected String rocType = null;
+
+	// ------------ public methods ------------
+
+	public FingerprintBayesian()
+	{
+	}
+
+	// adopts training data and hash counts that were tallied elsewhere (see BinCountTable); the counts must be consistent
+	// with the training fingerprints & activities, since they are not rechecked; the lists are not copied
+	FingerprintBayesian(List<int[]> training, List<Boolean> activity, Map<Integer, int[]> inHash)
+	{
+		this.training = training;
+		this.activity = activity;
+		this.inHash = inHash;
+		for (boolean active : activity) if (active) numActive++;
+	}
+
+	// recreates a built model from its contributions & calibration, without any training data (see ModelFile): it can be used
+	// for prediction, but not rebuilt or revalidated
+	FingerprintBayesian(Map<Integer, Double> contribs, double lowThresh, double highThresh, double rocAUC, String rocType)
+	{
+		this.contribs = contribs;
+		this.lowThresh = lowThresh;
+		this.highThresh = highThresh;
+		range = highThresh - lowThresh;
+		invRange = range > 0 ? 1 / range : 0;
+		this.rocAUC = rocAUC;
+		this.rocType = rocType;
+	}
+
+	// adopts a model that was built by the CDK Bayesian class (e.g. restored with Bayesian.deserialise(..)), so that it can be
+	// used in a composite model; only the contributions & calibration are carried over, so it cannot be rebuilt or revalidated
+	public static FingerprintBayesian fromBayesian(Bayesian model)
+	{
+		if (model.getClassType() != CircularFingerprinter.CLASS_ECFP6 || model.getFolding() != 0)
+			throw new ModelException("Only unfolded ECFP6 fingerprints are permitted for composite models.");
+		return new FingerprintBayesian(new HashMap<>(model.getContributions()), model.getLowThreshold(), model.getHighThreshold(),
+									   model.getROCAUC(), model.getROCType());
+	}
+
+	// appends a single fingerprint to the training set, with its active/inactive designation
+	public void addFingerprint(int[] fp, boolean active)
+	{
+		if (active) numActive++;
+		training.add(fp);
+		activity.add(active);
+		for (int h : fp)
+		{
+			int[] stash = inHash.get(h);
+			if (stash == null) inHash.put(h, stash = new int[2]);
+			if (active) stash[0]++;
+			stash[1]++;
+		}
+	}
+
+	// access to training content
+	public int numTraining() {return training.size();}
+	public int numActive() {return numActive;}
+
+	// converts the accumulated counts into contributions, then computes the calibration thresholds from the training set
+	public void build()
+	{
+		contribs.clear();
+		final int sz = training.size();
+		if (sz == 0) throw new ModelException("Bayesian model has no training data.");
+
+		final double P_AT = (double) numActive / sz;
+		for (Map.Entry<Integer, int[]> ent : inHash.entrySet())
+		{
+			final int[] AT = ent.getValue();
+			contribs.put(ent.getKey(), contribution(AT[0], AT[1], P_AT));
+		}
+
+		lowThresh = Double.POSITIVE_INFINITY;
+		highThresh = Double.NEGATIVE_INFINITY;
+		for (int n = 0; n < sz; n++) if (activity.get(n))
+		{
+			final double val = predict(training.get(n));
+			lowThresh = Math.min(lowThresh, val);
+			highThresh = Math.max(highThresh, val);
+		}
+		range = highThresh - lowThresh;
+		invRange = range > 0 ? 1 / range : 0;
+	}
+
+	// raw (uncalibrated) prediction: sum of contributions for any hash codes that were observed in the training set
+	public double predict(int[] fp)
+	{
+		double val = 0;
+		for (int h : fp)
+		{
+			Double c = contribs.get(h);
+			if (c != null) val += c;
+		}
+		return val;
+	}
+
+	// rescales the raw prediction so that the active members of the training set fall within (0..1)
+	public double scalePredictor(double pred)
+	{
+		// special case: if there is no differentiation scale, it's either above or below (typically happens with tiny models)
+		if (range == 0) return pred >= highThresh ? 1 : 0;
+		return (pred - lowThresh) * invRange;
+	}
+
+	// contributions for each hash code, as of the last call to build()
+	public Map<Integer, Double> getContributions() {return Collections.unmodifiableMap(contribs);}
+
+	public double getLowThreshold() {return lowThresh;}
+	public double getHighThreshold() {return highThresh;}
+
+	// cross validation: these are equivalent to the CDK variants, and they replace the estimates & ROC integral; since the model
+	// is just additive counts, the held-out predictions are made by subtracting the excluded entries from the tallies, so
+	// the cost is proportional to the total fingerprint size (rather than retraining for each held-out part); note that
+	// calling build() first is not necessary
+	public void validateLeaveOneOut()
+	{
+		final int sz = training.size();
+		estimates = new double[sz];
+		for (int n = 0; n < sz; n++) estimates[n] = singleLeaveOneOut(n);
+		rocAUC = calculateROC(estimates, activity);
+		rocType = "leave-one-out";
+	}
+
+	public void validateFiveFold()
+	{
+		validateNfold(5);
+		rocType = "five-fold";
+	}
+
+	public void validateThreeFold()
+	{
+		validateNfold(3);
+		rocType = "three-fold";
+	}
+
+	public double[] getEstimates() {return estimates;}
+	public double getROCAUC() {return rocAUC;}
+	public String getROCType() {return rocType;}
+
+	// the Laplacian-corrected contribution for a hash code which is found A times in actives and T times overall, where P_AT is
+	// the baseline fraction of actives
+	public static double contribution(int A, int T, double P_AT)
+	{
+		return Math.log((A + 1) / (T * P_AT + 1));
+	}
+
+	// area under the ROC curve for the given estimates & actual activities, computed with the trapezoid rule over all
+	// distinct thresholds, i.e. tied estimates are counted as half
+	public static double calculateROC(double[] estimates, List<Boolean> activity)
+	{
+		final int sz = estimates.length;
+		boolean[] actual = new boolean[sz];
+		for (int n = 0; n < sz; n++) actual[n] = activity.get(n);
+		return calculateROC(estimates, actual);
+	}
+
+	public static double calculateROC(double[] estimates, boolean[] activity)
+	{
+		final int sz = estimates.length;
+		Integer[] order = new Integer[sz];
+		for (int n = 0; n < sz; n++) order[n] = n;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer i1, Integer i2)
+			{
+				return Double.compare(estimates[i2], estimates[i1]);
+			}
+		});
+
+		int numPos = 0, numNeg = 0;
+		for (boolean a : activity) if (a) numPos++; else numNeg++;
+		if (numPos == 0 || numNeg == 0) return 0;
+
+		// walk from highest to lowest estimate, adding a trapezoid for each group of tied values
+		double area = 0;
+		int truePos = 0, falsePos = 0;
+		for (int n = 0; n < sz;)
+		{
+			int tp = 0, fp = 0;
+			final double v = estimates[order[n]];
+			for (; n < sz && estimates[order[n]] == v; n++) if (activity[order[n]]) tp++; else fp++;
+			area += fp * (truePos + 0.5 * tp);
+			truePos += tp;
+			falsePos += fp;
+		}
+		return area / ((double) numPos * numNeg);
+	}
+
+	// ------------ private methods ------------
+
+	// prediction for one of the training entries, as if it had not been included in the model
+	private double singleLeaveOneOut(int N)
+	{
+		final boolean exclActive = activity.get(N);
+		final int szN = training.size() - 1, dA = exclActive ? 1 : 0;
+		if (szN == 0) return 0;
+		final double P_AT = (double) (numActive - dA) / szN;
+
+		double val = 0;
+		for (int h : training.get(N))
+		{
+			final int[] AT = inHash.get(h);
+			if (AT[1] > 1) val += contribution(AT[0] - dA, AT[1] - 1, P_AT);
+		}
+		return val;
+	}
+
+	// stratified N-fold validation: actives and inactives are interleaved into the folds, and each fold is predicted using a
+	// model built from the remainder
+	private void validateNfold(int nsegs)
+	{
+		final int sz = training.size();
+		int[] order = new int[sz];
+		int p = 0;
+		for (int n = 0; n < sz; n++) if (activity.get(n)) order[p++] = n;
+		for (int n = 0; n < sz; n++) if (!activity.get(n)) order[p++] = n;
+		int[] segmap = new int[sz];
+		for (int n = 0; n < sz; n++) segmap[order[n]] = n % nsegs;
+
+		// each fold is predicted by the model that would be built from the remainder: its counts are obtained by tallying up
+		// the fold members and subtracting them from the overall counts, rather than recounting everything else
+		estimates = new double[sz];
+		for (int seg = 0; seg < nsegs; seg++)
+		{
+			Map<Integer, int[]> foldHash = new HashMap<>();
+			int na = 0, nt = 0;
+			for (int n = 0; n < sz; n++) if (segmap[n] == seg)
+			{
+				final boolean active = activity.get(n);
+				if (active) na++;
+				nt++;
+				for (int h : training.get(n))
+				{
+					int[] stash = foldHash.get(h);
+					if (stash == null) foldHash.put(h, stash = new int[2]);
+					if (active) stash[0]++;
+					stash[1]++;
+				}
+			}
+			if (nt == sz) continue; // nothing left to build from: estimates stay at zero
+
+			final double P_AT = (double) (numActive - na) / (sz - nt);
+			for (int n = 0; n < sz; n++) if (segmap[n] == seg)
+			{
+				double val = 0;
+				for (int h : training.get(n))
+				{
+					final int[] AT = inHash.get(h), F = foldHash.get(h);
+					final int T = AT[1] - F[1];
+					if (T > 0) val += contribution(AT[0] - F[0], T, P_AT);
+				}
+				estimates[n] = val;
+			}
+		}
+		rocAUC = calculateROC(estimates, activity);
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.smiles.SmilesGenerator;
+
+/*
+ * Persistent fingerprint cache: ECFP6 hash lists stored on disk, keyed by a canonical structure hash, so that repeated
+ * model builds and predictions over the same (or overlapping) compound collections can skip most of the fingerprinting.
+ * The file is a header followed by an append-only list of records, each of which is {key:long, count:int, hashes:int[]}.
+ * Existing content is accessed through memory maps, in chunks that each contain whole records, so there is no limit on the
+ * file size; new fingerprints are held in memory until flush() appends them, and only the appended part needs to be mapped.
+ * All methods are synchronized, so the cache can be shared by parallel fingerprinting tasks.
+ */
+public class FingerprintCache
+{
+	private static final int MAGIC = 0x42465043; // 'BFPC'
+	private static final int VERSION = 2; // (version 1 used a structure hash that did not distinguish bond orders)
+	private static final int HEADER_SIZE = 8;
+	private static final long MAP_CHUNK = 64L << 20; // nominal bytes per mapped chunk
+
+	private File file;
+	private List<MappedByteBuffer> chunks = new ArrayList<>(); // content as of the last open or flush
+	private long validLength = 0; // end of the last complete record
+	private Map<Long, Long> index = new HashMap<>(); // key: chunk number (high 32 bits) & position of the count field within it
+	private Map<Long, int[]> pending = new LinkedHashMap<>(); // added since then, not yet written
+
+	// canonical structure key: absolute SMILES, which spells out the whole structure (connectivity, bond orders, hydrogen
+	// counts, charges, isotopes & stereochemistry), digested down to 64 bits; it makes finer distinctions than ECFP6, which
+	// can only cause redundant cache entries, never the wrong fingerprint
+	private static final ThreadLocal<SmilesGenerator> threadSmiles = ThreadLocal.withInitial(() -> SmilesGenerator.absolute());
+	private static final ThreadLocal<MessageDigest> threadDigest = ThreadLocal.withInitial(() ->
+	{
+		try {return MessageDigest.getInstance("MD5");}
+		catch (NoSuchAlgorithmException ex) {throw new ModelException(ex);} // (every JRE is required to have it)
+	});
+
+	// ------------ public methods ------------
+
+	// opens the cache from the given file, if it exists: otherwise it starts out empty, and the file is created when there is
+	// something to flush
+	public FingerprintCache(File file) throws IOException
+	{
+		this.file = file;
+		if (file.exists()) mapFile();
+	}
+
+	// the cache key for a structure; fails if there is no canonical form, e.g. when hydrogen counts are undefined, in which
+	// case the structure should not be cached
+	public static long structureHash(IAtomContainer mol) throws CDKException
+	{
+		for (IAtom atom : mol.atoms()) if (atom.getImplicitHydrogenCount() == null) throw new CDKException("Undefined hydrogen count.");
+		String smiles = threadSmiles.get().create(mol);
+		byte[] digest = threadDigest.get().digest(smiles.getBytes(StandardCharsets.UTF_8));
+		long key = 0;
+		for (int n = 0; n < 8; n++) key = (key << 8) | (digest[n] & 0xFF);
+		return key;
+	}
+
+	public synchronized int size() {return index.size() + pending.size();}
+
+	// returns the fingerprint for the structure key, or null if not cached
+	public synchronized int[] get(long key)
+	{
+		int[] fp = pending.get(key);
+		if (fp != null) return fp;
+		Long pos = index.get(key);
+		if (pos == null) return null;
+
+		final MappedByteBuffer buf = chunks.get((int) (pos >>> 32));
+		int p = (int) (long) pos;
+		fp = new int[buf.getInt(p)];
+		p += 4;
+		for (int n = 0; n < fp.length; n++, p += 4) fp[n] = buf.getInt(p);
+		return fp;
+	}
+
+	// stashes a newly calculated fingerprint
+	public synchronized void put(long key, int[] fp)
+	{
+		if (index.containsKey(key)) return;
+		pending.put(key, fp);
+	}
+
+	// number of fingerprints that are waiting to be flushed
+	public synchronized int numPending() {return pending.size();}
+
+	// appends any new fingerprints to the file, then maps the new content
+	public synchronized void flush() throws IOException
+	{
+		if (pending.size() == 0) return;
+
+		boolean fresh = !file.exists() || validLength < HEADER_SIZE;
+		if (!fresh && file.length() > validLength)
+		{
+			try (FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {chan.truncate(validLength);}
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !fresh), 1 << 16)))
+		{
+			if (fresh)
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+			}
+			for (Map.Entry<Long, int[]> ent : pending.entrySet())
+			{
+				out.writeLong(ent.getKey());
+				out.writeInt(ent.getValue().length);
+				for (int h : ent.getValue()) out.writeInt(h);
+			}
+		}
+		pending.clear();
+		if (fresh) mapFile(); else mapChunks(validLength);
+	}
+
+	// ------------ private methods ------------
+
+	// maps the file contents, and indexes each complete record; anything after the last complete record is ignored, which
+	// can happen if a previous run was interrupted while appending; a cache from a different version is treated as empty
+	private void mapFile() throws IOException
+	{
+		index.clear();
+		chunks.clear();
+		validLength = 0;
+		try (FileChannel chan = FileChannel.open(file.toPath()))
+		{
+			if (chan.size() < HEADER_SIZE) return;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && chan.read(header, header.position()) >= 0) {}
+			if (header.getInt(0) != MAGIC) throw new IOException("Not a fingerprint cache file: " + file);
+			if (header.getInt(4) != VERSION) return; // (from another version: its keys can't be trusted, so it gets replaced on the next flush)
+		}
+		validLength = HEADER_SIZE;
+		mapChunks(HEADER_SIZE);
+	}
+
+	// maps & indexes the records from the given position onward, which must be the start of a record: each chunk ends at the
+	// last record that fits within it, and the next chunk starts there; a record that doesn't fit into a chunk of its own is
+	// either truncated or corrupt, so that is where the valid content ends
+	private void mapChunks(long pos) throws IOException
+	{
+		try (FileChannel chan = FileChannel.open(file.toPath()))
+		{
+			final long len = chan.size();
+			while (pos + 12 <= len)
+			{
+				final MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(len - pos, MAP_CHUNK));
+				final long chunk = (long) chunks.size() << 32;
+				final int limit = buf.limit();
+				int p = 0;
+				while (p + 12 <= limit)
+				{
+					final long key = buf.getLong(p);
+					final int count = buf.getInt(p + 8);
+					if (count < 0 || p + 12 + 4L * count > limit) break;
+					index.put(key, chunk | (p + 8));
+					p += 12 + 4 * count;
+				}
+				if (p == 0) break;
+				chunks.add(buf);
+				pos += p;
+				validLength = pos;
+			}
+		}
+	}
+}
@@ -24,14 +24,11 @@
 
 package com.cdd.bayes;
 
+import com.cdd.bayes.util.*;
+
 import java.lang.*;
 import java.util.*;
 
-import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.fingerprint.*;
-import org.openscience.cdk.fingerprint.model.*;
-import org.openscience.cdk.interfaces.IAtomContainer;
-
 /*
  * Greedy linear clustering: a subordinate class for use by CompositeModel, in order to reduce the number of
  * entries to a specific size; the objective is to select a subset that has an even sampling of activity values,
@@ -41,37 +38,43 @@ class GreedyLinearCluster
 {
 	private List<CompositeModel.Entry> entries;
 	private int size;
+	private int foldBits; // if nonzero: similarity is calculated from fingerprints folded down to this many bits
 
 	// ------------ public methods ------------
 
 	public GreedyLinearCluster(List<CompositeModel.Entry> entries, int size)
+	{
+		this(entries, size, 0);
+	}
+
+	// as above, but with similarity calculated by bit counting on folded fingerprints (see CompositeModel.foldFingerprint(..)),
+	// which is faster, but approximate, since some hash codes collide
+	public GreedyLinearCluster(List<CompositeModel.Entry> entries, int size, int foldBits)
 	{
 		this.entries = entries;
 		this.size = size;
+		this.foldBits = foldBits;
 	}
 
 	// generates a list of 0-based indices that make up the members of the cluster
 	public int[] calculate()
 	{
-		// sort the incoming indices by value
+		// sort the incoming indices by value, then pack the fingerprints in that order, so the scans below work on
+		// primitive arrays rather than going through the list each time; folded fingerprints are only made for the positions
+		// that actually get compared (which is a small fraction of a large partition), and kept for reuse
 		final int num = entries.size();
-		Integer[] valueOrder = new Integer[num];
-		for (int n = 0; n < num; n++) valueOrder[n] = n;
-		Arrays.sort(valueOrder, new Comparator<Integer>()
-		{
-			public int compare(Integer i1, Integer i2)
-			{
-				final double v1 = entries.get(i1).val, v2 = entries.get(i2).val;
-				if (v1 < v2) return -1;
-				else if (v1 > v2) return 1;
-				else return 0;
-			}
-		});
+		double[] values = new double[num];
+		for (int n = 0; n < num; n++) values[n] = entries.get(n).val;
+		final int[] valueOrder = Util.idxSort(values);
+		final int[][] sortedFP = new int[num][];
+		for (int n = 0; n < num; n++) sortedFP[n] = entries.get(valueOrder[n]).fp;
+		final boolean useFolded = foldBits > 0;
+		final long[][] sortedFolded = useFolded ? new long[num][] : null;
 
-		// initiate the opt-in with lowest and highest
+		// initiate the opt-in with lowest and highest; the mask is by position in value order
 		boolean[] mask = new boolean[num];
-		mask[valueOrder[0]] = true;
-		mask[valueOrder[num - 1]] = true;
+		mask[0] = true;
+		mask[num - 1] = true;
 		int[] lastIdx = new int[10];
 		lastIdx[0] = 0;
 		lastIdx[1] = num - 1;
@@ -89,12 +92,14 @@ class GreedyLinearCluster
 				int mid = Math.max(1, (int) Math.round((n - 0.5f) * num * invPass));
 				int best = -1;
 				float lowest = 0;
-				for (int i = mid; (i < mid + 10 || best < 0) && i < num; i++) if (!mask[valueOrder[i]])
+				for (int i = mid; (i < mid + 10 || best < 0) && i < num; i++) if (!mask[i])
 				{
 					float diff = 0;
 					for (int j = 0; j < lastSz; j++)
 					{
-						diff += tanimoto(entries.get(valueOrder[lastIdx[j]]).fp, entries.get(valueOrder[i]).fp);
+						final int p1 = lastIdx[j];
+						if (useFolded) diff += tanimoto(folded(sortedFolded, sortedFP, p1), folded(sortedFolded, sortedFP, i));
+						else diff += tanimoto(sortedFP[p1], sortedFP[i]);
 					}
 					diff /= lastSz;
 					if (best < 0 || diff < lowest)
@@ -105,7 +110,7 @@ class GreedyLinearCluster
 				}
 				if (best < 0) continue;
 
-				mask[valueOrder[best]] = true;
+				mask[best] = true;
 				if (lastSz >= lastIdx.length)
 				{
 					for (int i = 0; i < lastSz - 1; i++) lastIdx[i] = lastIdx[i + 1];
@@ -115,17 +120,38 @@ class GreedyLinearCluster
 				count++;
 				anything = true;
 			}
+			if (!anything) break;
 		}
 
-		// package the results
+		// package the results, in original index order
 		int[] retidx = new int[count];
 		count = 0;
-		for (int n = 0; n < num; n++) if (mask[n]) retidx[count++] = n;
+		for (int n = 0; n < num; n++) if (mask[n]) retidx[count++] = valueOrder[n];
+		Arrays.sort(retidx);
 		return retidx;
 	}
 
 	// ------------ private methods ------------
 
+	// folded fingerprint for the given position, which is made the first time it is needed
+	private long[] folded(long[][] sortedFolded, int[][] sortedFP, int pos)
+	{
+		if (sortedFolded[pos] == null) sortedFolded[pos] = CompositeModel.foldFingerprint(sortedFP[pos], foldBits);
+		return sortedFolded[pos];
+	}
+
+	// calculates the Tanimoto coefficient for two folded bitmasks of the same size, by counting bits a word at a time
+	private float tanimoto(long[] bits1, long[] bits2)
+	{
+		int shared = 0, total = 0;
+		for (int n = 0; n < bits1.length; n++)
+		{
+			shared += Long.bitCount(bits1[n] & bits2[n]);
+			total += Long.bitCount(bits1[n] | bits2[n]);
+		}
+		return (float) shared / total;
+	}
+
 	// calculates the Tanimoto coefficient for two lists of hash codes: these are assumed to be sorted and unique, which
 	// allows the calculation to be done in O(N) time
 	private float tanimoto(int[] fp1, int[] fp2)
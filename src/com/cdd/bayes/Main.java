@@ -93,6 +93,13 @@ public class Main
     				n++;
     				session.setFraction(Float.valueOf(argv[n]));
     			}
+    			else if (argv[n].equals("-c") && n + 1 < len)
+    			{
+    				n++;
+    				session.setCacheFile(argv[n]);
+    			}
+    			else if (argv[n].equals("-l")) session.setLazyLoad(true);
+    			else if (argv[n].equals("-r")) session.setRawOutput(true);
     			else if (argv[n].equals("-w")) openWindow = true;
     			else throw new IOException("Unexpected parameter.");
     		}
@@ -123,6 +130,9 @@ public class Main
 				Util.writeln("    " + strType + " [" + df.filename + "] Field:[" + strField + "]");
 			}
 			Util.writeln("Fraction of training partitioned to testing set: " + session.getFraction());
+			if (session.getCacheFile() != null) Util.writeln("Fingerprint cache: " + session.getCacheFile());
+			if (session.isLazyLoad()) Util.writeln("Lazy loading: structures parsed on demand");
+			if (session.isRawOutput()) Util.writeln("Raw output: input records copied verbatim");
 		}
 	}
 	
@@ -144,6 +154,9 @@ public class Main
 		Util.writeln("    -p <predicting files...>  input files for predictions");
 		Util.writeln("    -o <output file>          output file to write predictions to");
 		Util.writeln("    -f <fraction>             fraction (0..1) of training -> testing");
+		Util.writeln("    -c <cache file>           persistent fingerprint cache (created if absent)");
+		Util.writeln("    -l                        lazy loading: index files, parse structures only when needed");
+		Util.writeln("    -r                        raw output: copy prediction records verbatim, appending new fields");
 		Util.writeln("    -w                        open a window: interactive mode");
 
 		Util.writeln("\nFiles can optionally be specified as <filename>:<fieldname>.");
@@ -0,0 +1,230 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import org.json.*;
+
+/*
+ * Model persistence: reads & writes a calculated CompositeModel in a compact binary format. The content is the boundaries,
+ * the calibration & validation results for each bin, the validation matrix, and the compiled scoring table, which is stored
+ * exactly as it is laid out in memory: loading it is a matter of bulk copying a few arrays out of a memory mapped file,
+ * with no rehashing, so a saved model is ready for prediction almost immediately. The per-bin models are recreated from the
+ * scoring table only if asked for. All values are big-endian.
+ *
+ *     header:      magic ('BCMF'), version
+ *     boundaries:  #bins, min value, max value, segments [#bins-1]
+ *     each bin:    low threshold, high threshold, ROC AUC, ROC type (length & UTF-8 bytes, or -1 for none)
+ *     validation:  present (0/1), then matrix [#bins x #bins]
+ *     scoring:     capacity, #rows, keys [capacity], rows [capacity], contributions [#rows x #bins]
+ *
+ * A JSON summary of the same information (minus the scoring table) can be written alongside, for human consumption.
+ */
+public class ModelFile
+{
+	private static final int MAGIC = 0x42434D46; // 'BCMF'
+	private static final int VERSION = 1;
+
+	// ------------ public methods ------------
+
+	public static void write(CompositeModel model, File file) throws IOException
+	{
+		final ScoringTable scoring = model.scoring;
+		final int nbins = scoring.numBins();
+		FingerprintBayesian[] models = model.getModels();
+		int[][] matrix = model.getValidationMatrix();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(nbins);
+			out.writeDouble(model.getMinVal());
+			out.writeDouble(model.getMaxVal());
+			for (double v : model.getSegments()) out.writeDouble(v);
+
+			for (int b = 0; b < nbins; b++)
+			{
+				out.writeDouble(scoring.getLowThreshold(b));
+				out.writeDouble(scoring.getHighThreshold(b));
+				out.writeDouble(models[b].getROCAUC());
+				String rocType = models[b].getROCType();
+				if (rocType == null) out.writeInt(-1);
+				else
+				{
+					byte[] bytes = rocType.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+
+			out.writeInt(matrix == null ? 0 : 1);
+			if (matrix != null) for (int[] row : matrix) for (int v : row) out.writeInt(v);
+
+			final int[] keys = scoring.getKeys(), rows = scoring.getRows();
+			final double[] contribs = scoring.getContribs();
+			out.writeInt(keys.length);
+			out.writeInt(nbins == 0 ? 0 : contribs.length / nbins);
+			for (int v : keys) out.writeInt(v);
+			for (int v : rows) out.writeInt(v);
+			for (double v : contribs) out.writeDouble(v);
+		}
+	}
+
+	public static CompositeModel read(File file) throws IOException
+	{
+		ByteBuffer buf;
+		try (FileChannel chan = FileChannel.open(file.toPath()))
+		{
+			if (chan.size() > Integer.MAX_VALUE) throw new IOException("Model file too large: " + file);
+			buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+		}
+
+		try
+		{
+			if (buf.getInt() != MAGIC) throw new IOException("Not a model file: " + file);
+			final int version = buf.getInt();
+			if (version != VERSION) throw new IOException("Unsupported model file version " + version + ": " + file);
+
+			final int nbins = buf.getInt();
+			if (nbins < 1) throw new IOException("Invalid number of bins: " + file);
+			CompositeModel model = new CompositeModel();
+			model.minVal = buf.getDouble();
+			model.maxVal = buf.getDouble();
+			model.segments = getDoubles(buf, nbins - 1);
+
+			double[] lowThresh = new double[nbins], highThresh = new double[nbins];
+			model.rocAUC = new double[nbins];
+			model.rocType = new String[nbins];
+			for (int b = 0; b < nbins; b++)
+			{
+				lowThresh[b] = buf.getDouble();
+				highThresh[b] = buf.getDouble();
+				model.rocAUC[b] = buf.getDouble();
+				final int len = buf.getInt();
+				if (len >= 0)
+				{
+					byte[] bytes = new byte[len];
+					buf.get(bytes);
+					model.rocType[b] = new String(bytes, StandardCharsets.UTF_8);
+				}
+			}
+
+			if (buf.getInt() != 0)
+			{
+				model.matrix = new int[nbins][];
+				for (int n = 0; n < nbins; n++) model.matrix[n] = getInts(buf, nbins);
+			}
+
+			final int capacity = buf.getInt(), nrows = buf.getInt();
+			if (capacity < 0 || nrows < 0 || nrows > capacity) throw new IOException("Invalid scoring table: " + file);
+			int[] keys = getInts(buf, capacity), rows = getInts(buf, capacity);
+			double[] contribs = getDoubles(buf, nrows * nbins);
+			model.scoring = new ScoringTable(nbins, keys, rows, contribs, lowThresh, highThresh);
+			return model;
+		}
+		catch (BufferUnderflowException ex) {throw new IOException("Model file is truncated: " + file);}
+	}
+
+	// human-readable summary: boundaries, calibration & validation for each bin, and the validation matrix
+	public static void writeSummary(CompositeModel model, File file) throws IOException
+	{
+		try
+		{
+			JSONObject json = new JSONObject();
+			json.put("version", VERSION);
+			json.put("boundaries", toArray(model.getBoundaries()));
+
+			FingerprintBayesian[] models = model.getModels();
+			double[] bound = model.getBoundaries();
+			JSONArray bins = new JSONArray();
+			for (int b = 0; b < models.length; b++)
+			{
+				JSONObject bin = new JSONObject();
+				bin.put("min", bound[b]);
+				bin.put("max", bound[b + 1]);
+				bin.put("numHashes", models[b].getContributions().size());
+				bin.put("lowThreshold", models[b].getLowThreshold());
+				bin.put("highThreshold", models[b].getHighThreshold());
+				if (!Double.isNaN(models[b].getROCAUC())) bin.put("rocAUC", models[b].getROCAUC());
+				if (models[b].getROCType() != null) bin.put("rocType", models[b].getROCType());
+				bins.put(bin);
+			}
+			json.put("bins", bins);
+
+			int[][] matrix = model.getValidationMatrix();
+			if (matrix != null)
+			{
+				JSONArray jmatrix = new JSONArray();
+				for (int[] row : matrix)
+				{
+					JSONArray jrow = new JSONArray();
+					for (int v : row) jrow.put(v);
+					jmatrix.put(jrow);
+				}
+				json.put("validationMatrix", jmatrix);
+			}
+
+			try (Writer wtr = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+			{
+				wtr.write(json.toString(2));
+				wtr.write("\n");
+			}
+		}
+		catch (JSONException ex) {throw new IOException("Unable to compose model summary", ex);}
+	}
+
+	// ------------ private methods ------------
+
+	private static int[] getInts(ByteBuffer buf, int num)
+	{
+		int[] arr = new int[num];
+		buf.asIntBuffer().get(arr);
+		buf.position(buf.position() + 4 * num);
+		return arr;
+	}
+
+	private static double[] getDoubles(ByteBuffer buf, int num)
+	{
+		double[] arr = new double[num];
+		buf.asDoubleBuffer().get(arr);
+		buf.position(buf.position() + 8 * num);
+		return arr;
+	}
+
+	private static JSONArray toArray(double[] values) throws JSONException
+	{
+		JSONArray arr = new JSONArray();
+		for (double v : values) arr.put(v);
+		return arr;
+	}
+}
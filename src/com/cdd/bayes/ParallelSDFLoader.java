@@ -0,0 +1,203 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+
+/*
+ * Parallel SD file loader: the file is divided into chunks of roughly equal size, each of which is moved forward to the
+ * next record boundary (i.e. just after a "$$$$" line), so that every record belongs to exactly one chunk. The chunks are
+ * memory mapped and parsed concurrently, and the molecules are reassembled in their original order. Each chunk is mapped
+ * separately, so the file size is not limited by the 2GB maximum for a single mapping.
+ */
+class ParallelSDFLoader
+{
+	private File file;
+	private long fileSize;
+
+	private static final long CHUNK_SIZE = 8L << 20; // nominal bytes per chunk
+	private static final int SCAN_WINDOW = 1 << 20; // mapped window size when looking for record boundaries
+
+	// ------------ public methods ------------
+
+	public ParallelSDFLoader(File file)
+	{
+		this.file = file;
+	}
+
+	// parses the whole file, using the given executor for the chunks; the results are in file order
+	public List<IAtomContainer> load(Executor exec) throws IOException
+	{
+		try (FileChannel chan = FileChannel.open(file.toPath()))
+		{
+			long[] bounds = chunkBoundaries(chan);
+			final int nchunks = bounds.length - 1;
+			if (nchunks == 1) return parseChunk(chan, 0, fileSize);
+
+			List<CompletableFuture<List<IAtomContainer>>> futures = new ArrayList<>();
+			for (int n = 0; n < nchunks; n++)
+			{
+				final long start = bounds[n], end = bounds[n + 1];
+				if (end <= start) continue;
+				futures.add(CompletableFuture.supplyAsync(() ->
+				{
+					try {return parseChunk(chan, start, end);}
+					catch (IOException ex) {throw new CompletionException(ex);}
+				}, exec));
+			}
+
+			List<IAtomContainer> mols = new ArrayList<>();
+			try {for (CompletableFuture<List<IAtomContainer>> f : futures) mols.addAll(f.join());}
+			catch (CompletionException ex)
+			{
+				Throwable cause = ex.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw ex;
+			}
+			return mols;
+		}
+	}
+
+	// positions at which each chunk starts, plus the end of the file; the chunks may be mapped & parsed independently
+	public long[] chunkBoundaries(FileChannel chan) throws IOException
+	{
+		fileSize = chan.size();
+		final int nchunks = (int) Math.max(1, (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		long[] bounds = new long[nchunks + 1];
+		bounds[nchunks] = fileSize;
+		Window win = new Window(chan);
+		for (int n = 1; n < nchunks; n++) bounds[n] = Math.max(bounds[n - 1], nextBoundary(win, n * CHUNK_SIZE));
+		return bounds;
+	}
+
+	// within a buffer that ends on a record boundary: returns the position just after the first "$$$$" line that begins at
+	// or after pos, or the end of the buffer if there is none
+	public static int recordEnd(ByteBuffer buf, int pos)
+	{
+		final int limit = buf.limit();
+		for (int p = pos; p + 4 <= limit; p++)
+		{
+			if (buf.get(p) != '$') continue;
+			if (p > pos && buf.get(p - 1) != '\n' && buf.get(p - 1) != '\r') continue;
+			if (buf.get(p + 1) != '$' || buf.get(p + 2) != '$' || buf.get(p + 3) != '$') continue;
+
+			int q = p + 4;
+			while (q < limit && (buf.get(q) == ' ' || buf.get(q) == '\t')) q++;
+			if (q >= limit) return limit;
+			final byte ch = buf.get(q);
+			if (ch == '\n') return q + 1;
+			if (ch == '\r') return q + 1 < limit && buf.get(q + 1) == '\n' ? q + 2 : q + 1;
+		}
+		return limit;
+	}
+
+	// ------------ private methods ------------
+
+	// returns the position just after the first "$$$$" line that begins at or after pos, or the end of the file if there is
+	// none; note that neighbouring chunks use the same nominal position, so they always agree on the boundary
+	private long nextBoundary(Window win, long pos) throws IOException
+	{
+		for (long p = pos; p + 4 <= fileSize; p++)
+		{
+			if (win.get(p) != '$') continue;
+			if (p > 0 && win.get(p - 1) != '\n' && win.get(p - 1) != '\r') continue;
+			if (win.get(p + 1) != '$' || win.get(p + 2) != '$' || win.get(p + 3) != '$') continue;
+
+			long q = p + 4;
+			while (q < fileSize && (win.get(q) == ' ' || win.get(q) == '\t')) q++;
+			if (q >= fileSize) return fileSize;
+			final byte ch = win.get(q);
+			if (ch == '\n') return q + 1;
+			if (ch == '\r') return q + 1 < fileSize && win.get(q + 1) == '\n' ? q + 2 : q + 1;
+		}
+		return fileSize;
+	}
+
+	// maps the given range and runs it through the regular reader
+	private List<IAtomContainer> parseChunk(FileChannel chan, long start, long end) throws IOException
+	{
+		if (end - start > Integer.MAX_VALUE) throw new IOException("SD record too large to map: " + file);
+		MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		List<IAtomContainer> mols = new ArrayList<>();
+		try (IteratingSDFReader rdr = ExecuteSession.openReader(new BufferStream(buf)))
+		{
+			while (rdr.hasNext()) mols.add(rdr.next());
+		}
+		return mols;
+	}
+
+	// random access to individual bytes, through a memory mapped window that gets moved as necessary
+	private static final class Window
+	{
+		private FileChannel chan;
+		private MappedByteBuffer buf = null;
+		private long base = 0;
+
+		Window(FileChannel chan) {this.chan = chan;}
+
+		byte get(long pos) throws IOException
+		{
+			if (buf == null || pos < base || pos >= base + buf.limit())
+			{
+				base = Math.max(0, pos - 16); // (a little slack, since the previous byte is sometimes needed)
+				buf = chan.map(FileChannel.MapMode.READ_ONLY, base, Math.min(SCAN_WINDOW, chan.size() - base));
+			}
+			return buf.get((int) (pos - base));
+		}
+	}
+
+	// presents a buffer as an input stream
+	static final class BufferStream extends InputStream
+	{
+		private ByteBuffer buf;
+
+		BufferStream(ByteBuffer buf) {this.buf = buf;}
+
+		public int read()
+		{
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0) return 0;
+			if (!buf.hasRemaining()) return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		public int available() {return buf.remaining();}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Prefetching input stream: a background thread reads blocks from the underlying stream (typically a decompressor) and
+ * queues them up, so that the reading (I/O & decompression) overlaps with whatever the consumer does with the content
+ * (typically parsing). The queue is bounded, so the reader stays a limited distance ahead. Any exception encountered by the
+ * background thread is rethrown to the consumer once it has consumed everything that came before.
+ */
+class PrefetchInputStream extends InputStream
+{
+	private static final int BLOCK_SIZE = 1 << 20;
+	private static final int QUEUE_BLOCKS = 8;
+	private static final byte[] END = new byte[0]; // marker for end of stream (or failure)
+
+	private final InputStream in;
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+	private final Thread thread;
+	private volatile Throwable failure = null;
+	private volatile boolean closed = false;
+
+	private byte[] block = null;
+	private int pos = 0, len = 0;
+	private boolean finished = false;
+
+	// ------------ public methods ------------
+
+	public PrefetchInputStream(InputStream in)
+	{
+		this.in = in;
+		thread = new Thread(this::fetch, "PrefetchInputStream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int read() throws IOException
+	{
+		if (!nextBlock()) return -1;
+		return block[pos++] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int sz) throws IOException
+	{
+		if (sz == 0) return 0;
+		if (!nextBlock()) return -1;
+		sz = Math.min(sz, len - pos);
+		System.arraycopy(block, pos, b, off, sz);
+		pos += sz;
+		return sz;
+	}
+
+	public int available()
+	{
+		return block == null ? 0 : len - pos;
+	}
+
+	public void close() throws IOException
+	{
+		closed = true;
+		thread.interrupt();
+		try {thread.join();}
+		catch (InterruptedException ex) {Thread.currentThread().interrupt();}
+		in.close();
+	}
+
+	// ------------ private methods ------------
+
+	// makes sure there is some unconsumed content in the current block; returns false at the end of the stream
+	private boolean nextBlock() throws IOException
+	{
+		while (block == null || pos >= len)
+		{
+			if (finished) return false;
+			try {block = queue.take();}
+			catch (InterruptedException ex) {throw new InterruptedIOException("Interrupted while reading");}
+			if (block == END)
+			{
+				finished = true;
+				block = null;
+				if (failure != null) rethrow();
+				return false;
+			}
+			pos = 0;
+			len = block.length;
+		}
+		return true;
+	}
+
+	// passes on whatever went wrong in the background thread, unwrapped if possible
+	private void rethrow() throws IOException
+	{
+		if (failure instanceof IOException) throw (IOException) failure;
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+		throw new IOException(failure);
+	}
+
+	// background: reads full blocks (the last one may be short) until the end of the input
+	private void fetch()
+	{
+		byte[] buff = null;
+		int sz = 0; // bytes in the current block that have not been queued yet
+		try
+		{
+			while (!closed)
+			{
+				buff = new byte[BLOCK_SIZE];
+				while (sz < BLOCK_SIZE)
+				{
+					final int got = in.read(buff, sz, BLOCK_SIZE - sz);
+					if (got < 0) break;
+					sz += got;
+				}
+				final boolean more = sz == BLOCK_SIZE;
+				if (sz > 0) queue.put(more ? buff : Arrays.copyOf(buff, sz));
+				sz = 0;
+				if (!more) break;
+			}
+		}
+		catch (InterruptedException ex) {return;} // (closed while waiting: nobody is listening)
+		catch (Throwable ex) {failure = ex;} // (anything at all, since the consumer is waiting for the end marker)
+
+		try
+		{
+			if (sz > 0) queue.put(Arrays.copyOf(buff, sz)); // (whatever was read before the failure)
+			queue.put(END);
+		}
+		catch (InterruptedException ex) {} // (closed: nobody is listening)
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.*;
+import java.util.*;
+
+/*
+ * Passthrough SD file writer: each record is copied from the original bytes of an input record (see SDFRecordIndex), with
+ * some additional data fields inserted just before the "$$$$" delimiter. Nothing gets parsed or regenerated, so the output
+ * is as cheap as a file copy, and the original content is preserved exactly. Appended lines follow the line terminator
+ * style of the record.
+ */
+public class RawSDFWriter implements Closeable
+{
+	private OutputStream out;
+	private byte[] scratch = new byte[1 << 14];
+
+	// ------------ public methods ------------
+
+	public RawSDFWriter(OutputStream out)
+	{
+		this.out = new BufferedOutputStream(out, 1 << 16);
+	}
+
+	// writes the record, which should be the complete bytes for a single entry, with the given fields appended
+	public void write(ByteBuffer record, Map<String, String> fields) throws IOException
+	{
+		record = record.duplicate();
+		final int start = record.position(), limit = record.limit();
+
+		// the delimiter is the last line that has any content; if there is none, the whole record is body
+		int end = limit;
+		while (end > start && record.get(end - 1) <= ' ') end--;
+		int body = end;
+		while (body > start && record.get(body - 1) != '\n' && record.get(body - 1) != '\r') body--;
+		if (!(end - body >= 4 && record.get(body) == '$' && record.get(body + 1) == '$' && record.get(body + 2) == '$' && record.get(body + 3) == '$'))
+		{
+			body = end;
+		}
+
+		byte[] eol = "\n".getBytes(ExecuteSession.SDF_CHARSET);
+		for (int p = start; p < body; p++) if (record.get(p) == '\n')
+		{
+			if (p > start && record.get(p - 1) == '\r') eol = "\r\n".getBytes(ExecuteSession.SDF_CHARSET);
+			break;
+		}
+
+		record.limit(body);
+		while (record.hasRemaining())
+		{
+			final int sz = Math.min(scratch.length, record.remaining());
+			record.get(scratch, 0, sz);
+			out.write(scratch, 0, sz);
+		}
+		if (body > start && record.get(body - 1) != '\n' && record.get(body - 1) != '\r') out.write(eol);
+
+		for (Map.Entry<String, String> ent : fields.entrySet())
+		{
+			out.write(("> <" + ent.getKey() + ">").getBytes(ExecuteSession.SDF_CHARSET));
+			out.write(eol);
+			out.write(ent.getValue().getBytes(ExecuteSession.SDF_CHARSET));
+			out.write(eol);
+			out.write(eol);
+		}
+		out.write('$');
+		out.write('$');
+		out.write('$');
+		out.write('$');
+		out.write(eol);
+	}
+
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	public void close() throws IOException
+	{
+		out.close();
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+
+/*
+ * Record index for an SD file: the file is memory mapped (in chunks, as for ParallelSDFLoader) and the position of each
+ * record is noted, without parsing anything. Individual data fields can be pulled out by scanning the record text, which
+ * is much cheaper than a full parse; the structure is only parsed on request, and is not retained, so it can be dropped
+ * and re-read at any time. Instances are immutable once built, and may be used from any thread.
+ */
+public class SDFRecordIndex
+{
+	private File file;
+	private ByteBuffer[] segments; // mapped chunks, each of which contains only whole records
+	private int[] recSegment; // for each record: which segment
+	private int[] recStart, recEnd; // for each record: position within the segment
+
+	// ------------ public methods ------------
+
+	// maps the file and finds all of the records; the chunks are scanned in parallel
+	public SDFRecordIndex(File file, Executor exec) throws IOException
+	{
+		this.file = file;
+		try (FileChannel chan = FileChannel.open(file.toPath()))
+		{
+			long[] bounds = new ParallelSDFLoader(file).chunkBoundaries(chan);
+			final int nchunks = bounds.length - 1;
+			segments = new ByteBuffer[nchunks];
+			for (int n = 0; n < nchunks; n++)
+			{
+				if (bounds[n + 1] - bounds[n] > Integer.MAX_VALUE) throw new IOException("SD record too large to map: " + file);
+				segments[n] = chan.map(FileChannel.MapMode.READ_ONLY, bounds[n], bounds[n + 1] - bounds[n]);
+			}
+		}
+
+		List<CompletableFuture<int[]>> futures = new ArrayList<>();
+		for (int n = 0; n < segments.length; n++)
+		{
+			final ByteBuffer buf = segments[n];
+			futures.add(CompletableFuture.supplyAsync(() -> scanSegment(buf), exec));
+		}
+
+		int total = 0;
+		List<int[]> scanned = new ArrayList<>();
+		for (CompletableFuture<int[]> f : futures)
+		{
+			int[] bounds = f.join();
+			scanned.add(bounds);
+			total += bounds.length >> 1;
+		}
+		recSegment = new int[total];
+		recStart = new int[total];
+		recEnd = new int[total];
+		for (int n = 0, p = 0; n < scanned.size(); n++)
+		{
+			int[] bounds = scanned.get(n);
+			for (int i = 0; i < bounds.length; i += 2, p++)
+			{
+				recSegment[p] = n;
+				recStart[p] = bounds[i];
+				recEnd[p] = bounds[i + 1];
+			}
+		}
+	}
+
+	public File getFile() {return file;}
+	public int size() {return recSegment.length;}
+
+	// returns the text of the given data field for a record, or null if the record does not have it; multiline values are
+	// joined with newlines, as for the CDK reader; note that the value is raw, i.e. without the SDFixerHack correction
+	public String getField(int idx, String field)
+	{
+		final ByteBuffer buf = segments[recSegment[idx]];
+		final int end = recEnd[idx];
+		final byte[] name = field.getBytes(ExecuteSession.SDF_CHARSET);
+
+		boolean inData = false; // data fields come after the connection table
+		for (int p = recStart[idx]; p < end;)
+		{
+			final int eol = lineEnd(buf, p, end);
+			if (!inData) inData = eol - p >= 6 && buf.get(p) == 'M' && buf.get(p + 1) == ' ' && buf.get(p + 2) == ' ' &&
+										  buf.get(p + 3) == 'E' && buf.get(p + 4) == 'N' && buf.get(p + 5) == 'D';
+			else if (buf.get(p) == '>' && isFieldHeader(buf, p, eol, name))
+			{
+				ByteArrayOutputStream value = new ByteArrayOutputStream();
+				p = nextLine(buf, eol, end);
+				while (p < end)
+				{
+					final int vend = lineEnd(buf, p, end);
+					if (vend == p || isDelimiter(buf, p, vend)) break;
+					if (value.size() > 0) value.write('\n');
+					for (int i = p; i < vend; i++) value.write(buf.get(i));
+					p = nextLine(buf, vend, end);
+				}
+				return new String(value.toByteArray(), ExecuteSession.SDF_CHARSET);
+			}
+			p = nextLine(buf, eol, end);
+		}
+		return null;
+	}
+
+	// names of the data fields in the first few records, in order of first appearance: the same records are likely to have the
+	// same fields, so this is a quick way to find out what fields there are without looking through the whole file
+	public List<String> getFieldNames(int maxRecords)
+	{
+		Set<String> names = new LinkedHashSet<>();
+		for (int idx = 0; idx < Math.min(maxRecords, size()); idx++)
+		{
+			final ByteBuffer buf = segments[recSegment[idx]];
+			final int end = recEnd[idx];
+			boolean inData = false;
+			for (int p = recStart[idx]; p < end;)
+			{
+				final int eol = lineEnd(buf, p, end);
+				if (!inData) inData = eol - p >= 6 && buf.get(p) == 'M' && buf.get(p + 1) == ' ' && buf.get(p + 2) == ' ' &&
+											  buf.get(p + 3) == 'E' && buf.get(p + 4) == 'N' && buf.get(p + 5) == 'D';
+				else if (buf.get(p) == '>')
+				{
+					int nstart = p + 1;
+					while (nstart < eol && buf.get(nstart) != '<') nstart++;
+					int nend = ++nstart;
+					while (nend < eol && buf.get(nend) != '>') nend++;
+					if (nend < eol && nend > nstart)
+					{
+						byte[] name = new byte[nend - nstart];
+						for (int i = 0; i < name.length; i++) name[i] = buf.get(nstart + i);
+						names.add(new String(name, ExecuteSession.SDF_CHARSET));
+					}
+				}
+				p = nextLine(buf, eol, end);
+			}
+		}
+		return new ArrayList<>(names);
+	}
+
+	// the original bytes for the given record, including the delimiter line
+	public ByteBuffer getRecord(int idx)
+	{
+		ByteBuffer buf = segments[recSegment[idx]].duplicate();
+		buf.limit(recEnd[idx]);
+		buf.position(recStart[idx]);
+		return buf.slice();
+	}
+
+	// parses the structure for the given record; returns null if it could not be made sense of
+	public IAtomContainer getMolecule(int idx)
+	{
+		try (IteratingSDFReader rdr = ExecuteSession.openReader(new ParallelSDFLoader.BufferStream(getRecord(idx))))
+		{
+			return rdr.hasNext() ? rdr.next() : null;
+		}
+		catch (IOException ex) {return null;} // (not actually possible, since it's all in memory)
+	}
+
+	// ------------ private methods ------------
+
+	// finds the records within a segment, returned as consecutive {start, end} pairs; anything that is just whitespace (e.g.
+	// trailing blank lines) does not count as a record
+	private static int[] scanSegment(ByteBuffer buf)
+	{
+		int[] bounds = new int[64];
+		int count = 0;
+		for (int p = 0, limit = buf.limit(); p < limit;)
+		{
+			final int end = ParallelSDFLoader.recordEnd(buf, p);
+			boolean blank = true;
+			for (int i = p; i < end && blank; i++) blank = buf.get(i) <= ' ';
+			if (!blank)
+			{
+				if (count + 2 > bounds.length) bounds = Arrays.copyOf(bounds, bounds.length << 1);
+				bounds[count++] = p;
+				bounds[count++] = end;
+			}
+			p = end;
+		}
+		return Arrays.copyOf(bounds, count);
+	}
+
+	// position of the line terminator (or the limit), starting from a line start
+	private static int lineEnd(ByteBuffer buf, int pos, int limit)
+	{
+		while (pos < limit && buf.get(pos) != '\n' && buf.get(pos) != '\r') pos++;
+		return pos;
+	}
+
+	// position of the next line, given the end of the current one
+	private static int nextLine(ByteBuffer buf, int eol, int limit)
+	{
+		if (eol < limit && buf.get(eol) == '\r') eol++;
+		if (eol < limit && buf.get(eol) == '\n') eol++;
+		return eol;
+	}
+
+	// true if the line is a data header (e.g. "> <name>" or ">  25 <name> (ID)") for the given field name
+	private static boolean isFieldHeader(ByteBuffer buf, int pos, int eol, byte[] name)
+	{
+		int p = pos + 1;
+		while (p < eol && buf.get(p) != '<') p++;
+		p++;
+		if (p + name.length >= eol || buf.get(p + name.length) != '>') return false;
+		for (int n = 0; n < name.length; n++) if (buf.get(p + n) != name[n]) return false;
+		return true;
+	}
+
+	private static boolean isDelimiter(ByteBuffer buf, int pos, int eol)
+	{
+		return eol - pos >= 4 && buf.get(pos) == '$' && buf.get(pos + 1) == '$' && buf.get(pos + 2) == '$' && buf.get(pos + 3) == '$';
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.lang.*;
+import java.util.*;
+
+/*
+ * Scoring table: a frozen, compiled form of the per-bin models used by CompositeModel for prediction. All of the hash codes
+ * from all of the models are placed in a single open-addressing table, which maps each one to a row in a flat array of
+ * contributions, with one column per bin. Scoring a fingerprint takes one probe per hash code, and yields the contribution
+ * for every bin at once. The results are identical to calling predict() & scalePredictor() on each model. Instances are
+ * immutable, so they can be used from any number of threads.
+ */
+class ScoringTable
+{
+	private final int nbins;
+	private final int mask; // capacity - 1 (capacity is a power of 2)
+	private final int[] keys; // hash code in each slot
+	private final int[] rows; // row index + 1 for each slot, or 0 if unoccupied
+	private final double[] contribs; // [row * nbins + bin]
+	private final double[] lowThresh, highThresh, range, invRange; // calibration for each bin
+
+	// ------------ public methods ------------
+
+	// compiles the table from the models, which must already have been built
+	public ScoringTable(FingerprintBayesian[] models)
+	{
+		nbins = models.length;
+
+		Set<Integer> vocab = new HashSet<>();
+		for (FingerprintBayesian model : models) vocab.addAll(model.getContributions().keySet());
+		int capacity = 16;
+		while (capacity < vocab.size() * 2) capacity <<= 1;
+		mask = capacity - 1;
+		keys = new int[capacity];
+		rows = new int[capacity];
+		contribs = new double[vocab.size() * nbins];
+
+		int row = 0;
+		for (int h : vocab)
+		{
+			int slot = mix(h) & mask;
+			while (rows[slot] != 0) slot = (slot + 1) & mask;
+			keys[slot] = h;
+			rows[slot] = row + 1;
+			for (int b = 0; b < nbins; b++)
+			{
+				Double c = models[b].getContributions().get(h);
+				if (c != null) contribs[row * nbins + b] = c;
+			}
+			row++;
+		}
+
+		lowThresh = new double[nbins];
+		highThresh = new double[nbins];
+		range = new double[nbins];
+		invRange = new double[nbins];
+		for (int b = 0; b < nbins; b++)
+		{
+			lowThresh[b] = models[b].getLowThreshold();
+			highThresh[b] = models[b].getHighThreshold();
+			range[b] = highThresh[b] - lowThresh[b];
+			invRange[b] = range[b] > 0 ? 1 / range[b] : 0;
+		}
+	}
+
+	// recreates a table from its constituent arrays, as previously saved (see ModelFile); no rehashing is necessary
+	ScoringTable(int nbins, int[] keys, int[] rows, double[] contribs, double[] lowThresh, double[] highThresh)
+	{
+		if (Integer.bitCount(keys.length) != 1 || rows.length != keys.length || contribs.length % Math.max(1, nbins) != 0)
+			throw new ModelException("Invalid scoring table dimensions.");
+		this.nbins = nbins;
+		this.mask = keys.length - 1;
+		this.keys = keys;
+		this.rows = rows;
+		this.contribs = contribs;
+		this.lowThresh = lowThresh;
+		this.highThresh = highThresh;
+		range = new double[nbins];
+		invRange = new double[nbins];
+		for (int b = 0; b < nbins; b++)
+		{
+			range[b] = highThresh[b] - lowThresh[b];
+			invRange[b] = range[b] > 0 ? 1 / range[b] : 0;
+		}
+	}
+
+	public int numBins() {return nbins;}
+
+	// access to the internals, for persistence: these are not copies, and must not be modified
+	int[] getKeys() {return keys;}
+	int[] getRows() {return rows;}
+	double[] getContribs() {return contribs;}
+	double getLowThreshold(int bin) {return lowThresh[bin];}
+	double getHighThreshold(int bin) {return highThresh[bin];}
+
+	// unpacks the contributions for one of the bins, i.e. the same as FingerprintBayesian.getContributions()
+	public Map<Integer, Double> getContributions(int bin)
+	{
+		Map<Integer, Double> map = new HashMap<>();
+		for (int slot = 0; slot < keys.length; slot++) if (rows[slot] != 0) map.put(keys[slot], contribs[(rows[slot] - 1) * nbins + bin]);
+		return map;
+	}
+
+	// calibrated prediction for each bin
+	public float[] predict(int[] fp)
+	{
+		double[] scaled = new double[nbins];
+		score(fp, scaled);
+		float[] pred = new float[nbins];
+		for (int b = 0; b < nbins; b++) pred[b] = (float) scaled[b];
+		return pred;
+	}
+
+	// as above, at full precision, written into the given array (which must be at least #bins long)
+	public void score(int[] fp, double[] scaled)
+	{
+		Arrays.fill(scaled, 0, nbins, 0);
+		for (int h : fp)
+		{
+			int slot = mix(h) & mask;
+			for (; rows[slot] != 0; slot = (slot + 1) & mask) if (keys[slot] == h)
+			{
+				final int base = (rows[slot] - 1) * nbins;
+				for (int b = 0; b < nbins; b++) scaled[b] += contribs[base + b];
+				break;
+			}
+		}
+
+		// (same as FingerprintBayesian.scalePredictor)
+		for (int b = 0; b < nbins; b++)
+		{
+			if (range[b] == 0) scaled[b] = scaled[b] >= highThresh[b] ? 1 : 0;
+			else scaled[b] = (scaled[b] - lowThresh[b]) * invRange[b];
+		}
+	}
+
+	// ------------ private methods ------------
+
+	// scrambles the hash code bits, since the low bits are used directly for the slot
+	private static int mix(int h)
+	{
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -48,6 +48,7 @@ public class Session
 		public String field;
 		public List<IAtomContainer> molecules = new ArrayList<>(); // note: contains structure and fields from the SDfile, i.e. activity in there somewhere
 																   // constituent objects should be treated as immutable
+		public SDFRecordIndex index = null; // alternative to molecules, when loaded lazily: records are parsed on demand
 		
 		public DataFile(String filename, int type, String field)
 		{
@@ -59,12 +60,16 @@ public class Session
 		{
 			DataFile dup = new DataFile(filename, type, field);
 			dup.molecules.addAll(molecules);
+			dup.index = index;
 			return dup;
 		}
 	}
 	private List<DataFile> files = new ArrayList<>();
 	
 	private float fraction = 0;
+	private String cacheFile = null;
+	private boolean lazyLoad = false;
+	private boolean rawOutput = false;
 	
 	// ------------ public methods ------------
 	
@@ -77,6 +82,9 @@ public class Session
 		Session dup = new Session();
 		for (DataFile df : files) dup.files.add(df.clone());
 		dup.fraction = fraction;
+		dup.cacheFile = cacheFile;
+		dup.lazyLoad = lazyLoad;
+		dup.rawOutput = rawOutput;
 		return dup;
 	}
 	
@@ -91,6 +99,19 @@ public class Session
 	// fraction of training set to push into the testing set
 	public float getFraction() {return fraction;}
 	public void setFraction(float fraction) {this.fraction = fraction;}
+	
+	// optional file for persistent storage of fingerprints, to save recalculating them for molecules seen before
+	public String getCacheFile() {return cacheFile;}
+	public void setCacheFile(String cacheFile) {this.cacheFile = cacheFile;}
+
+	// lazy loading: files are indexed rather than parsed, and structures are only parsed as needed
+	public boolean isLazyLoad() {return lazyLoad;}
+	public void setLazyLoad(boolean lazyLoad) {this.lazyLoad = lazyLoad;}
+
+	// raw output: prediction records are copied verbatim from the input file, with the new fields appended (implies that
+	// prediction files are loaded lazily)
+	public boolean isRawOutput() {return rawOutput;}
+	public void setRawOutput(boolean rawOutput) {this.rawOutput = rawOutput;}
 }
 
 
@@ -0,0 +1,205 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import com.cdd.bayes.util.*;
+
+import java.lang.*;
+import java.util.*;
+
+/*
+ * Stratified MaxMin clustering: an alternative to GreedyLinearCluster for large datasets, with the same contract. The
+ * entries are split into strata of equal population by value, and each stratum receives an even share of the picks;
+ * within each stratum, the next pick is the entry that is most dissimilar to everything picked so far (MaxMin). Rather than
+ * comparing every candidate against every pick, the fingerprints are summarised as MinHash signatures, and bucketed by
+ * locality sensitive hashing: each new pick only lowers the dissimilarity of the entries that share a bucket with it,
+ * which are the only ones likely to be similar. This keeps the cost roughly linear in the number of entries, even when
+ * picking thousands of representatives.
+ */
+class StratifiedMaxMinCluster
+{
+	private List<CompositeModel.Entry> entries;
+	private int size;
+
+	private static final int NUM_BANDS = 8, BAND_ROWS = 4, NUM_HASHES = NUM_BANDS * BAND_ROWS; // LSH configuration
+	private static final int STRATUM_PICKS = 50; // approximate number of picks per value stratum
+
+	private int[][] signatures; // MinHash signature for each entry
+	private long[][] bandKeys; // [band][sorted position]: key for the bucket
+	private int[][] bandOrder; // [band][sorted position]: entry index
+
+	// ------------ public methods ------------
+
+	public StratifiedMaxMinCluster(List<CompositeModel.Entry> entries, int size)
+	{
+		this.entries = entries;
+		this.size = size;
+	}
+
+	// generates a list of 0-based indices that make up the members of the cluster
+	public int[] calculate()
+	{
+		final int num = entries.size();
+		if (num <= size)
+		{
+			int[] retidx = new int[num];
+			for (int n = 0; n < num; n++) retidx[n] = n;
+			return retidx;
+		}
+
+		buildSignatures();
+		buildBuckets();
+
+		double[] values = new double[num];
+		for (int n = 0; n < num; n++) values[n] = entries.get(n).val;
+		int[] valueOrder = Util.idxSort(values);
+
+		// dissimilarity of each entry to its nearest pick: starts at maximum, and is set to -1 once picked
+		float[] minDist = new float[num];
+		Arrays.fill(minDist, 1);
+		boolean[] mask = new boolean[num];
+		int count = 0;
+
+		// always include the lowest and highest
+		for (int i : new int[]{valueOrder[0], valueOrder[num - 1]}) if (!mask[i])
+		{
+			pick(i, mask, minDist);
+			count++;
+		}
+
+		// divide the remaining picks between strata of equal population, then do MaxMin within each one
+		final int remaining = size - count, nstrata = Math.max(1, Math.min(remaining, (remaining + STRATUM_PICKS - 1) / STRATUM_PICKS));
+		for (int s = 0; s < nstrata; s++)
+		{
+			final int start = (int) ((long) s * num / nstrata), end = (int) ((long) (s + 1) * num / nstrata);
+			final int quota = (int) ((long) (s + 1) * remaining / nstrata) - (int) ((long) s * remaining / nstrata);
+			for (int j = 0; j < quota; j++)
+			{
+				// prefer the most dissimilar; break ties by closeness to evenly spaced positions within the stratum
+				final float target = start + (j + 0.5f) * (end - start) / quota;
+				int best = -1;
+				for (int p = start; p < end; p++)
+				{
+					final int i = valueOrder[p];
+					if (mask[i]) continue;
+					if (best < 0 || minDist[i] > minDist[valueOrder[best]] ||
+						(minDist[i] == minDist[valueOrder[best]] && Math.abs(p - target) < Math.abs(best - target))) best = p;
+				}
+				if (best < 0) break;
+				pick(valueOrder[best], mask, minDist);
+				count++;
+			}
+		}
+
+		// package the results
+		int[] retidx = new int[count];
+		count = 0;
+		for (int n = 0; n < num; n++) if (mask[n]) retidx[count++] = n;
+		return retidx;
+	}
+
+	// ------------ private methods ------------
+
+	// MinHash: for each of the hash functions, the smallest permuted value of any hash code in the fingerprint
+	private void buildSignatures()
+	{
+		final int num = entries.size();
+		Random rnd = new Random(1); // predictable random
+		long[] mulA = new long[NUM_HASHES], addB = new long[NUM_HASHES];
+		for (int k = 0; k < NUM_HASHES; k++)
+		{
+			mulA[k] = rnd.nextLong() | 1;
+			addB[k] = rnd.nextLong();
+		}
+
+		signatures = new int[num][];
+		for (int n = 0; n < num; n++)
+		{
+			int[] sig = new int[NUM_HASHES];
+			Arrays.fill(sig, Integer.MAX_VALUE);
+			for (int h : entries.get(n).fp) for (int k = 0; k < NUM_HASHES; k++)
+			{
+				final int v = (int) ((h * mulA[k] + addB[k]) >>> 33);
+				if (v < sig[k]) sig[k] = v;
+			}
+			signatures[n] = sig;
+		}
+	}
+
+	// LSH: each band of the signature is combined into a key, and the entries are sorted by key, so that each bucket is a
+	// contiguous run that can be found by binary search
+	private void buildBuckets()
+	{
+		final int num = entries.size();
+		bandKeys = new long[NUM_BANDS][];
+		bandOrder = new int[NUM_BANDS][];
+		for (int b = 0; b < NUM_BANDS; b++)
+		{
+			long[] keys = new long[num];
+			for (int n = 0; n < num; n++) keys[n] = bandKey(n, b);
+			int[] order = Util.idxSort(keys);
+			long[] sorted = new long[num];
+			for (int n = 0; n < num; n++) sorted[n] = keys[order[n]];
+			bandKeys[b] = sorted;
+			bandOrder[b] = order;
+		}
+	}
+
+	private long bandKey(int idx, int band)
+	{
+		final int[] sig = signatures[idx];
+		long key = 0;
+		for (int r = 0, k = band * BAND_ROWS; r < BAND_ROWS; r++, k++) key = key * 0x9E3779B97F4A7C15L + sig[k];
+		return key;
+	}
+
+	// selects the entry, and lowers the dissimilarity of any entries that share an LSH bucket with it
+	private void pick(int idx, boolean[] mask, float[] minDist)
+	{
+		mask[idx] = true;
+		minDist[idx] = -1;
+		final int[] sig = signatures[idx];
+		for (int b = 0; b < NUM_BANDS; b++)
+		{
+			final long[] keys = bandKeys[b];
+			final long key = bandKey(idx, b);
+			int lo = 0, hi = keys.length;
+			while (lo < hi)
+			{
+				final int mid = (lo + hi) >>> 1;
+				if (keys[mid] < key) lo = mid + 1; else hi = mid;
+			}
+			for (int p = lo; p < keys.length && keys[p] == key; p++)
+			{
+				final int i = bandOrder[b][p];
+				if (mask[i]) continue;
+				final int[] other = signatures[i];
+				int differ = 0;
+				for (int k = 0; k < NUM_HASHES; k++) if (sig[k] != other[k]) differ++;
+				minDist[i] = Math.min(minDist[i], (float) differ / NUM_HASHES);
+			}
+		}
+	}
+}
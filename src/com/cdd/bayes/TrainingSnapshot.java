@@ -0,0 +1,130 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/*
+ * Training set snapshot: the partitioned training & testing entries, reduced to just their values and fingerprints, and
+ * stored in columnar form so that a model can be rebuilt (e.g. with different bin settings) without parsing or
+ * fingerprinting any structures. Each partition is stored as: count, values [count], fingerprint offsets [count+1], then
+ * all of the hash codes concatenated [offsets[count]]. The file is read through a memory map; the entries that come out of
+ * it have no molecule attached. All values are big-endian.
+ */
+public class TrainingSnapshot
+{
+	private static final int MAGIC = 0x42545353; // 'BTSS'
+	private static final int VERSION = 1;
+
+	private List<CompositeModel.Entry> training, testing;
+
+	// ------------ public methods ------------
+
+	// reads a previously written snapshot
+	public TrainingSnapshot(File file) throws IOException
+	{
+		ByteBuffer buf;
+		try (FileChannel chan = FileChannel.open(file.toPath()))
+		{
+			if (chan.size() > Integer.MAX_VALUE) throw new IOException("Snapshot file too large: " + file);
+			buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+		}
+
+		try
+		{
+			if (buf.getInt() != MAGIC) throw new IOException("Not a training snapshot: " + file);
+			final int version = buf.getInt();
+			if (version != VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + file);
+			training = readPartition(buf);
+			testing = readPartition(buf);
+		}
+		catch (BufferUnderflowException ex) {throw new IOException("Snapshot file is truncated: " + file);}
+	}
+
+	// writes the two partitions; all of the entries must have their fingerprints already calculated
+	public static void write(File file, List<CompositeModel.Entry> training, List<CompositeModel.Entry> testing) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writePartition(out, training);
+			writePartition(out, testing);
+		}
+	}
+
+	public List<CompositeModel.Entry> getTraining() {return training;}
+	public List<CompositeModel.Entry> getTesting() {return testing;}
+
+	// ------------ private methods ------------
+
+	private static void writePartition(DataOutputStream out, List<CompositeModel.Entry> entries) throws IOException
+	{
+		final int num = entries.size();
+		out.writeInt(num);
+		for (CompositeModel.Entry e : entries) out.writeDouble(e.val);
+		int offset = 0;
+		out.writeInt(offset);
+		for (CompositeModel.Entry e : entries)
+		{
+			if (e.fp == null) throw new ModelException("Fingerprints must be calculated before writing a snapshot.");
+			offset += e.fp.length;
+			out.writeInt(offset);
+		}
+		for (CompositeModel.Entry e : entries) for (int h : e.fp) out.writeInt(h);
+	}
+
+	private static List<CompositeModel.Entry> readPartition(ByteBuffer buf) throws IOException
+	{
+		final int num = buf.getInt();
+		if (num < 0) throw new IOException("Invalid snapshot partition size.");
+
+		double[] values = new double[num];
+		buf.asDoubleBuffer().get(values);
+		buf.position(buf.position() + 8 * num);
+		int[] offsets = new int[num + 1];
+		buf.asIntBuffer().get(offsets);
+		buf.position(buf.position() + 4 * (num + 1));
+
+		IntBuffer hashes = buf.asIntBuffer();
+		if (hashes.remaining() < offsets[num]) throw new BufferUnderflowException();
+		List<CompositeModel.Entry> entries = new ArrayList<>(num);
+		for (int n = 0; n < num; n++)
+		{
+			CompositeModel.Entry e = new CompositeModel.Entry();
+			e.val = values[n];
+			e.fp = new int[offsets[n + 1] - offsets[n]];
+			hashes.position(offsets[n]);
+			hashes.get(e.fp);
+			entries.add(e);
+		}
+		buf.position(buf.position() + 4 * offsets[num]);
+		return entries;
+	}
+}
@@ -64,6 +64,7 @@ public class CompositeWindow
     private VBox content = new VBox();
     
 	final int PADDING = 4;
+	final int INDEX_FIELD_SCAN = 100; // records to look at for field names, when a file is indexed rather than loaded
 
     //private MenuBar menuBar;
     //private Menu menuFile, menuEdit, menuValue, menuView;
@@ -193,7 +194,7 @@ public class CompositeWindow
 			
 			row = new RowLine(PADDING);
 			row.add(fg.segType, 0);
-			int nmol = df.molecules.size();
+			int nmol = df.molecules.size() + (df.index == null ? 0 : df.index.size());
 			if (nmol > 0) 
 			{
 				Label labelRows = new Label("(" + nmol + " row" + (nmol == 1 ? "" : "s") + ")");
@@ -210,7 +211,8 @@ public class CompositeWindow
 			content.getChildren().add(fg.vbox);
 			fileGroups.add(fg);
 
-			// scan through the molecules and add all unique fields to the combobox			
+			// scan through the molecules and add all unique fields to the combobox; for an indexed file, the first records stand
+			// in for the rest, rather than parsing them all
 			Set<String> already = new HashSet<>();
 			for (IAtomContainer mol : df.molecules)
 			{
@@ -222,6 +224,10 @@ public class CompositeWindow
 					already.add(fldName);
 				}
 			}
+			if (df.index != null) for (String fldName : df.index.getFieldNames(INDEX_FIELD_SCAN))
+			{
+				if (already.add(fldName)) fg.comboField.getItems().add(fldName);
+			}
 			
 			//content.getChildren().add(new Rectangle(0, 10)); // spacer
 		}
@@ -488,6 +494,7 @@ public class CompositeWindow
 			Session.DataFile df = session.getFile(idx);
 			df.filename = file.getPath();
 			df.molecules.clear();
+			df.index = null;
 			exec = null;
 			recreateContent();
 		}
@@ -522,26 +529,31 @@ public class CompositeWindow
 		
 		new Thread(() ->
 		{
-			if (exec == null) exec = new ExecuteSession(session);
-		
-			for (int n = 0; n < session.numFiles(); n++)
+			try
 			{
-				try {exec.loadFile(n);}
-				catch (IOException ex)
+				if (exec == null) exec = new ExecuteSession(session);
+			
+				for (int n = 0; n < session.numFiles(); n++)
 				{
-					final String fn = session.getFile(n).filename;
-			        Platform.runLater(() -> Util.informMessage("Load Failed", "For file [" + fn + "].\nReason: " + ex.getMessage()));
-					ex.printStackTrace();
-					break;
+					try {exec.loadFile(n);}
+					catch (Exception ex)
+					{
+						final String fn = session.getFile(n).filename;
+				        Platform.runLater(() -> Util.informMessage("Load Failed", "For file [" + fn + "].\nReason: " + ex.getMessage()));
+						ex.printStackTrace();
+						break;
+					}
 				}
+				exec.partitionMolecules();
 			}
-			exec.partitionMolecules();
-		
-			synchronized (mutex)
+			finally
 			{
-				busy = false;
+				synchronized (mutex)
+				{
+					busy = false;
+				}
+		        Platform.runLater(() -> recreateContent());
 			}
-	        Platform.runLater(() -> recreateContent());
 	        
 		}).start();
 	}
@@ -659,7 +671,7 @@ public class CompositeWindow
         	File file = chooser.showSaveDialog(stage);
     		if (file == null) return;
     		fn = file.getPath();
-    		if (!fn.endsWith(".sdf")) fn += ".sdf";
+    		if (!fn.endsWith(".sdf") && !fn.endsWith(".sdf.gz")) fn += ".sdf";
 		}
 		
 		synchronized (mutex)
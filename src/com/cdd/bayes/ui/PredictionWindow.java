@@ -183,24 +183,29 @@ public class PredictionWindow
 		}
 	}
 	
-	// runs in a background thread, and makes predictions for each molecule, and renders the results nicely
+	// runs in a background thread, and makes predictions for each molecule, and renders the results nicely; for lazily loaded
+	// entries, each structure is parsed only when its turn comes
 	private void makePredictions()
 	{
-		List<IAtomContainer> queue = new ArrayList<>();
+		List<CompositeModel.Entry> queue = new ArrayList<>();
 	
 		synchronized (mutex)
 		{
-			for (CompositeModel.Entry entry : molecules) queue.add(entry.mol);
+			queue.addAll(molecules);
 		}
 	
-		while (queue.size() > 0)
+		for (CompositeModel.Entry entry : queue)
 		{
-			IAtomContainer mol = queue.remove(0);
+			IAtomContainer mol = entry.getMolecule();
 
 			Prediction p = new Prediction();
 			p.mol = mol;
-			try {p.pred = model.predictBins(mol);}
-			catch (CDKException ex) {p.exception = ex;}
+			if (mol == null) p.exception = new CDKException("Unable to parse structure.");
+			else
+			{
+				try {p.pred = model.predictBins(mol);}
+				catch (CDKException ex) {p.exception = ex;}
+			}
 			
 			if (p.pred != null)
 			{
@@ -125,9 +125,16 @@ public class RenderMatrix
 			matrix = new int[nbins][];
 			for (int n = 0; n < nbins; n++) matrix[n] = new int[nbins];
 			
-			for (CompositeModel.Entry entry : dataset)
+			model.fillFingerprints(dataset);
+			int[][] fplist = new int[dataset.size()][];
+			for (int n = 0; n < fplist.length; n++) fplist[n] = dataset.get(n).fp;
+			float[][] predictions = model.predictBins(fplist);
+
+			for (int n = 0; n < fplist.length; n++)
 			{
-				float[] pred = model.predictBins(entry.mol);
+				CompositeModel.Entry entry = dataset.get(n);
+				float[] pred = predictions[n];
+				if (pred == null) continue; // (structure could not be parsed)
 				
     			int want = 0, got = 0;
     			for (int i = 0; i < segments.length; i++) if (entry.val >= segments[i]) want = i + 1;
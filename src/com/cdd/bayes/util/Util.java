@@ -28,6 +28,7 @@ import java.io.*;
 import java.lang.reflect.*;
 import java.text.*;
 import java.util.*;
+import java.util.function.*;
 import javafx.scene.control.*;
 import javafx.scene.paint.*;
 
@@ -994,6 +995,50 @@ public class Util
 		for (int n = 0; n < loose.length; n++) if (loose[n] != null) packed[len++] = loose[n];
 	}
 
+	/**
+	 * Returns the indices of the array, ordered by ascending value. The sort is stable (ties stay in index order), and it
+	 * works on primitives only, i.e. no boxing. Values are compared as for Double.compare, so NaN comes after everything
+	 * else, and -0.0 before 0.0.
+	 */
+	public static int[] idxSort(double[] A)
+	{
+		return idxSort(A.length, (i, j) -> Double.compare(A[i], A[j]));
+	}
+
+	/**
+	 * Returns the indices of the array, ordered by ascending value: stable, and without boxing.
+	 */
+	public static int[] idxSort(long[] A)
+	{
+		return idxSort(A.length, (i, j) -> Long.compare(A[i], A[j]));
+	}
+
+	/**
+	 * Returns the indices 0..sz-1, ordered by the comparator, which is given pairs of indices. The sort is stable (a bottom-up
+	 * merge sort, swapping between two buffers at each width).
+	 */
+	public static int[] idxSort(int sz, IntBinaryOperator cmp)
+	{
+		int[] idx = new int[sz], buff = new int[sz];
+		for (int n = 0; n < sz; n++) idx[n] = n;
+
+		for (int width = 1; width < sz; width <<= 1)
+		{
+			for (int lo = 0; lo < sz; lo += width << 1)
+			{
+				final int mid = Math.min(lo + width, sz), hi = Math.min(lo + (width << 1), sz);
+				int i = lo, j = mid, p = lo;
+				while (i < mid && j < hi) buff[p++] = cmp.applyAsInt(idx[j], idx[i]) < 0 ? idx[j++] : idx[i++];
+				while (i < mid) buff[p++] = idx[i++];
+				while (j < hi) buff[p++] = idx[j++];
+			}
+			int[] swap = idx;
+			idx = buff;
+			buff = swap;
+		}
+		return idx;
+	}
+
 	/**
 	 * Converts a TRGB value (0xTTRRGGBB) into a colour instance for JavaFX.
 	 */
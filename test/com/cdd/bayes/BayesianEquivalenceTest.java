@@ -0,0 +1,211 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.util.*;
+
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.fingerprint.model.Bayesian;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+
+/*
+ * Checks FingerprintBayesian & CutpointSweep against the CDK Bayesian reference implementation: for each sample file, the
+ * most populated numeric field is split into actives/inactives at several thresholds, and both implementations are
+ * trained on the same molecules; the contributions, calibrated predictions, leave-one-out & N-fold estimates and the ROC
+ * integrals must all agree. Run from the project directory (see the "test" target in build.xml); the files to use can be
+ * given as arguments, otherwise it is everything in sample/*.sdf.
+ */
+public class BayesianEquivalenceTest
+{
+	private static final double[] QUANTILES = {0.25, 0.5, 0.75}; // where to put the activity threshold
+	private static final double TOLERANCE = 1E-9; // allowance for summation order
+	private static final double FLOAT_TOLERANCE = 1E-6; // for results that are delivered as single precision
+
+	private int failures = 0;
+
+	// ------------ public methods ------------
+
+	public static void main(String[] args) throws Exception
+	{
+		List<File> files = new ArrayList<>();
+		for (String fn : args) files.add(new File(fn));
+		if (files.size() == 0)
+		{
+			File[] list = new File("sample").listFiles((dir, fn) -> fn.endsWith(".sdf"));
+			if (list == null) throw new IOException("Sample directory not found: run from the project directory.");
+			Arrays.sort(list);
+			files.addAll(Arrays.asList(list));
+		}
+
+		BayesianEquivalenceTest test = new BayesianEquivalenceTest();
+		for (File f : files) test.checkFile(f);
+		if (test.failures > 0)
+		{
+			System.out.println("FAILED: " + test.failures + " mismatch(es)");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// ------------ private methods ------------
+
+	private void checkFile(File f) throws Exception
+	{
+		List<IAtomContainer> mols = new ArrayList<>();
+		try (IteratingSDFReader rdr = ExecuteSession.openReader(new FileInputStream(f)))
+		{
+			while (rdr.hasNext()) mols.add(rdr.next());
+		}
+
+		// use whichever field has the most numeric values
+		Map<Object, Integer> counts = new HashMap<>();
+		for (IAtomContainer mol : mols) for (Map.Entry<Object, Object> prop : mol.getProperties().entrySet())
+		{
+			if (!Double.isNaN(numeric(prop.getValue()))) counts.merge(prop.getKey(), 1, Integer::sum);
+		}
+		Object field = null;
+		for (Map.Entry<Object, Integer> ent : counts.entrySet()) if (field == null || ent.getValue() > counts.get(field)) field = ent.getKey();
+		if (field == null || counts.get(field) < 10)
+		{
+			System.out.println(f.getName() + ": no usable field, skipped");
+			return;
+		}
+
+		List<CompositeModel.Entry> entries = new ArrayList<>();
+		for (IAtomContainer mol : mols)
+		{
+			final double val = numeric(mol.getProperty(field));
+			if (Double.isNaN(val)) continue;
+			CompositeModel.Entry e = new CompositeModel.Entry();
+			e.mol = mol;
+			e.val = val;
+			e.fp = CompositeModel.calculateFingerprint(mol);
+			entries.add(e);
+		}
+		System.out.println(f.getName() + ": field=" + field + " #entries=" + entries.size());
+
+		double[] sorted = new double[entries.size()];
+		for (int n = 0; n < sorted.length; n++) sorted[n] = entries.get(n).val;
+		Arrays.sort(sorted);
+		List<Double> cuts = new ArrayList<>();
+		for (double q : QUANTILES)
+		{
+			// threshold halfway between neighbouring distinct values, so that both sides are populated
+			int i = Math.max(1, (int) (q * sorted.length));
+			while (i < sorted.length - 1 && sorted[i] == sorted[i - 1]) i++;
+			final double cut = 0.5 * (sorted[i - 1] + sorted[i]);
+			if (cuts.size() == 0 || cut > cuts.get(cuts.size() - 1)) cuts.add(cut);
+		}
+
+		int[] subset = new int[entries.size()];
+		for (int n = 0; n < subset.length; n++) subset[n] = n;
+		float[] sweep = new CutpointSweep(entries, subset).calculate(cuts);
+
+		for (int c = 0; c < cuts.size(); c++)
+		{
+			final double cut = cuts.get(c);
+			String label = f.getName() + " @" + cut;
+
+			Bayesian cdk = new Bayesian(CircularFingerprinter.CLASS_ECFP6, 0);
+			FingerprintBayesian fpb = new FingerprintBayesian();
+			for (CompositeModel.Entry e : entries)
+			{
+				cdk.addMolecule(e.mol, e.val >= cut);
+				fpb.addFingerprint(e.fp, e.val >= cut);
+			}
+			cdk.build();
+			fpb.build();
+
+			checkContributions(label, cdk.getContributions(), fpb.getContributions());
+			check(label + " low threshold", cdk.getLowThreshold(), fpb.getLowThreshold());
+			check(label + " high threshold", cdk.getHighThreshold(), fpb.getHighThreshold());
+			for (int n = 0; n < entries.size(); n++)
+			{
+				CompositeModel.Entry e = entries.get(n);
+				check(label + " prediction #" + (n + 1), cdk.scalePredictor(cdk.predict(e.mol)), fpb.scalePredictor(fpb.predict(e.fp)));
+			}
+
+			cdk.validateLeaveOneOut();
+			fpb.validateLeaveOneOut();
+			checkValidation(label + " leave-one-out", cdk, fpb);
+			check(label + " cutpoint sweep", cdk.getROCAUC(), sweep[c], FLOAT_TOLERANCE);
+
+			cdk.validateFiveFold();
+			fpb.validateFiveFold();
+			checkValidation(label + " five-fold", cdk, fpb);
+
+			cdk.validateThreeFold();
+			fpb.validateThreeFold();
+			checkValidation(label + " three-fold", cdk, fpb);
+
+			System.out.println("    cut=" + cut + " LOO=" + fpb.getROCAUC());
+		}
+	}
+
+	private void checkContributions(String label, Map<Integer, Double> want, Map<Integer, Double> got)
+	{
+		if (!want.keySet().equals(got.keySet()))
+		{
+			fail(label + " contributions: hash codes differ (" + want.size() + " vs " + got.size() + ")");
+			return;
+		}
+		for (Map.Entry<Integer, Double> ent : want.entrySet()) check(label + " contribution " + ent.getKey(), ent.getValue(), got.get(ent.getKey()));
+	}
+
+	private void checkValidation(String label, Bayesian cdk, FingerprintBayesian fpb)
+	{
+		double[] want = cdk.getEstimates(), got = fpb.getEstimates();
+		if (want.length != got.length) fail(label + ": #estimates " + want.length + " vs " + got.length);
+		else for (int n = 0; n < want.length; n++) check(label + " estimate #" + (n + 1), want[n], got[n]);
+		check(label + " ROC", cdk.getROCAUC(), fpb.getROCAUC());
+		if (!Objects.equals(cdk.getROCType(), fpb.getROCType())) fail(label + " ROC type: " + cdk.getROCType() + " vs " + fpb.getROCType());
+	}
+
+	private void check(String label, double want, double got)
+	{
+		check(label, want, got, TOLERANCE);
+	}
+
+	private void check(String label, double want, double got, double tolerance)
+	{
+		if (Math.abs(want - got) <= tolerance * Math.max(1, Math.abs(want))) return;
+		fail(label + ": expected " + want + ", got " + got);
+	}
+
+	private void fail(String msg)
+	{
+		if (failures++ < 50) System.out.println("    MISMATCH " + msg);
+	}
+
+	private static double numeric(Object val)
+	{
+		if (val == null) return Double.NaN;
+		try {return Double.parseDouble(val.toString().trim());}
+		catch (NumberFormatException ex) {return Double.NaN;}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.util.*;
+
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.smiles.SmilesParser;
+
+/*
+ * Checks that the fingerprint cache keeps apart structures that have the same atoms but different bond orders or hydrogen
+ * counts: each pair must get different cache keys, and a fingerprint that was cached for one member of the pair must not
+ * be handed out for the other, whether from memory or after being written to disk and read back.
+ */
+public class FingerprintCacheTest
+{
+	// pairs that differ only by bond order/hydrogen count
+	private static final String[][] PAIRS =
+	{
+		{"C1=CC=CC=C1", "C1CCCCC1"}, // benzene, cyclohexane
+		{"CCO", "CC=O"}, // ethanol, acetaldehyde
+		{"CC(=O)C", "CC(O)=C"}, // acetone, prop-1-en-2-ol (tautomers)
+		{"C=CC=C", "CC=CC"}, // buta-1,3-diene, but-2-ene
+	};
+
+	// ------------ public methods ------------
+
+	public static void main(String[] args) throws Exception
+	{
+		SmilesParser parser = new SmilesParser(DefaultChemObjectBuilder.getInstance());
+		File file = File.createTempFile("fpcache", ".bin");
+		file.delete();
+		try
+		{
+			for (String[] pair : PAIRS)
+			{
+				IAtomContainer mol1 = parser.parseSmiles(pair[0]), mol2 = parser.parseSmiles(pair[1]);
+				final int[] fp1 = CompositeModel.calculateFingerprint(mol1), fp2 = CompositeModel.calculateFingerprint(mol2);
+				final String label = pair[0] + " vs " + pair[1];
+				check(label + ": fingerprints should differ", !Arrays.equals(fp1, fp2));
+
+				final long key1 = FingerprintCache.structureHash(mol1), key2 = FingerprintCache.structureHash(mol2);
+				check(label + ": cache keys should differ", key1 != key2);
+				check(label + ": cache key should be repeatable", key1 == FingerprintCache.structureHash(parser.parseSmiles(pair[0])));
+
+				// prime the cache with the first one, then fingerprint the second one through it
+				FingerprintCache cache = new FingerprintCache(file);
+				cache.put(key1, fp1);
+				check(label + ": from memory", Arrays.equals(viaCache(cache, mol2), fp2));
+				cache.flush();
+
+				cache = new FingerprintCache(file);
+				check(label + ": cached entry should survive", Arrays.equals(cache.get(key1), fp1));
+				check(label + ": from file", Arrays.equals(viaCache(cache, mol2), fp2));
+				check(label + ": first one from file", Arrays.equals(viaCache(cache, mol1), fp1));
+				file.delete();
+			}
+		}
+		finally {file.delete();}
+		System.out.println("OK");
+	}
+
+	// ------------ private methods ------------
+
+	// fingerprints the molecule by way of a model that is hooked up to the cache
+	private static int[] viaCache(FingerprintCache cache, IAtomContainer mol)
+	{
+		CompositeModel model = new CompositeModel();
+		model.setFingerprintCache(cache);
+		CompositeModel.Entry e = new CompositeModel.Entry();
+		e.mol = mol;
+		model.fillFingerprints(e);
+		return e.fp;
+	}
+
+	private static void check(String label, boolean ok)
+	{
+		if (ok) return;
+		System.out.println("FAILED: " + label);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.lang.*;
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * Compares GreedyLinearCluster against the implementation that it replaced (boxed index sort with a comparator that goes
+ * through the entry list, and similarity looked up by way of the entries), which is reproduced below: for each partition
+ * size, both are given the same synthetic entries, and must pick exactly the same subset; then each is timed over a number
+ * of calls, after warming up, and the median time per call is reported. Partition sizes go up to just below the point where
+ * CompositeModel switches over to MaxMin. The current implementation is also timed with folded fingerprints (the opt-in
+ * approximate similarity), for comparison with the exact mode. Exits with an error if the picks of the previous & current
+ * implementations differ; the timings are for information only.
+ */
+public class GreedyLinearClusterBenchmark
+{
+	private static final int[] PARTITION_SIZES = {1000, 5000, 19000};
+	private static final int SUBSET_SIZE = 100; // as for CompositeModel's pre-clustering
+	private static final int FOLD_BITS = 2048; // for the folded similarity mode
+	private static final int HASH_POOL = 5000; // distinct hash codes to draw from, so that fingerprints overlap
+	private static final int HASHES_PER_ENTRY = 60; // roughly typical for ECFP6
+	private static final int WARMUP = 20, REPEATS = 50;
+
+	// ------------ public methods ------------
+
+	public static void main(String[] args)
+	{
+		Random rnd = new Random(1);
+		int[] pool = new int[HASH_POOL];
+		for (int n = 0; n < pool.length; n++) pool[n] = rnd.nextInt();
+
+		boolean ok = true;
+		for (int num : PARTITION_SIZES)
+		{
+			List<CompositeModel.Entry> entries = new ArrayList<>();
+			for (int n = 0; n < num; n++)
+			{
+				CompositeModel.Entry e = new CompositeModel.Entry();
+				e.val = Math.round(rnd.nextGaussian() * 100) * 0.01; // (rounded, so that there are ties)
+				Set<Integer> hashes = new TreeSet<>();
+				while (hashes.size() < HASHES_PER_ENTRY) hashes.add(pool[rnd.nextInt(pool.length)]);
+				e.fp = new int[hashes.size()];
+				int i = 0;
+				for (int h : hashes) e.fp[i++] = h;
+				entries.add(e);
+			}
+
+			int[] picksPrev = new PreviousGreedyLinearCluster(entries, SUBSET_SIZE).calculate();
+			int[] picksNew = new GreedyLinearCluster(entries, SUBSET_SIZE).calculate();
+			boolean same = Arrays.equals(picksPrev, picksNew);
+			ok = ok && same;
+
+			double msPrev = medianTime(() -> new PreviousGreedyLinearCluster(entries, SUBSET_SIZE).calculate());
+			double msNew = medianTime(() -> new GreedyLinearCluster(entries, SUBSET_SIZE).calculate());
+			double msFolded = medianTime(() -> new GreedyLinearCluster(entries, SUBSET_SIZE, FOLD_BITS).calculate());
+			System.out.println(String.format("#entries=%d picks=%s previous=%.2fms current=%.2fms (%.2fx) folded=%.2fms (%.2fx)",
+								num, same ? "identical" : "DIFFERENT", msPrev, msNew, msPrev / msNew, msFolded, msNew / msFolded));
+		}
+		if (!ok)
+		{
+			System.out.println("FAILED: picks differ");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// ------------ private methods ------------
+
+	// median wall clock time per call, in milliseconds
+	private static double medianTime(Supplier<int[]> call)
+	{
+		for (int n = 0; n < WARMUP; n++) call.get();
+		double[] times = new double[REPEATS];
+		for (int n = 0; n < REPEATS; n++)
+		{
+			final long t0 = System.nanoTime();
+			call.get();
+			times[n] = (System.nanoTime() - t0) * 1E-6;
+		}
+		Arrays.sort(times);
+		return times[REPEATS / 2];
+	}
+
+	// the previous implementation, unchanged except for leaving out the folded bitmask option (which the entries no longer
+	// carry), and stopping when a pass adds nothing, rather than looping forever
+	private static final class PreviousGreedyLinearCluster
+	{
+		private List<CompositeModel.Entry> entries;
+		private int size;
+
+		public PreviousGreedyLinearCluster(List<CompositeModel.Entry> entries, int size)
+		{
+			this.entries = entries;
+			this.size = size;
+		}
+
+		public int[] calculate()
+		{
+			final int num = entries.size();
+			Integer[] valueOrder = new Integer[num];
+			for (int n = 0; n < num; n++) valueOrder[n] = n;
+			Arrays.sort(valueOrder, new Comparator<Integer>()
+			{
+				public int compare(Integer i1, Integer i2)
+				{
+					final double v1 = entries.get(i1).val, v2 = entries.get(i2).val;
+					if (v1 < v2) return -1;
+					else if (v1 > v2) return 1;
+					else return 0;
+				}
+			});
+
+			boolean[] mask = new boolean[num];
+			mask[valueOrder[0]] = true;
+			mask[valueOrder[num - 1]] = true;
+			int[] lastIdx = new int[10];
+			lastIdx[0] = 0;
+			lastIdx[1] = num - 1;
+			int lastSz = 2;
+
+			int npass = size / 5;
+			final float invPass = 1.0f / (npass - 1);
+			int count = 2;
+			while (count < size)
+			{
+				boolean anything = false;
+				for (int n = 0; n < npass && count < size; n++)
+				{
+					int mid = Math.max(1, (int) Math.round((n - 0.5f) * num * invPass));
+					int best = -1;
+					float lowest = 0;
+					for (int i = mid; (i < mid + 10 || best < 0) && i < num; i++) if (!mask[valueOrder[i]])
+					{
+						float diff = 0;
+						for (int j = 0; j < lastSz; j++)
+						{
+							diff += tanimoto(entries.get(valueOrder[lastIdx[j]]).fp, entries.get(valueOrder[i]).fp);
+						}
+						diff /= lastSz;
+						if (best < 0 || diff < lowest)
+						{
+							lowest = diff;
+							best = i;
+						}
+					}
+					if (best < 0) continue;
+
+					mask[valueOrder[best]] = true;
+					if (lastSz >= lastIdx.length)
+					{
+						for (int i = 0; i < lastSz - 1; i++) lastIdx[i] = lastIdx[i + 1];
+						lastSz--;
+					}
+					lastIdx[lastSz++] = best;
+					count++;
+					anything = true;
+				}
+				if (!anything) break;
+			}
+
+			int[] retidx = new int[count];
+			count = 0;
+			for (int n = 0; n < num; n++) if (mask[n]) retidx[count++] = n;
+			return retidx;
+		}
+
+		private float tanimoto(int[] fp1, int[] fp2)
+		{
+			int shared = 0, total = 0;
+			final int sz1 = fp1.length, sz2 = fp2.length;
+			for (int i1 = 0, i2 = 0; i1 < sz1 || i2 < sz2; total++)
+			{
+				if (i1 == sz1)
+				{
+					total += sz2 - i2;
+					break;
+				}
+				if (i2 == sz2)
+				{
+					total += sz1 - i1;
+					break;
+				}
+				final int v1 = fp1[i1], v2 = fp2[i2];
+				if (v1 == v2)
+				{
+					shared++;
+					i1++;
+					i2++;
+				}
+				else if (v1 < v2) i1++;
+				else i2++;
+			}
+			return (float) shared / total;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Checks that lazy loading copes with a record whose structure cannot be parsed: it has a perfectly good value field, so
+ * it gets through partitioning, but it must be left out of the model, the snapshot and the predictions (regular and raw
+ * output) rather than causing a crash. Uses the first records of sample/DHFR.sdf, so it needs to be run from the project
+ * directory (see the "test" target in build.xml).
+ */
+public class MalformedRecordTest
+{
+	private static final int NUM_TRAINING = 80;
+	private static final String MALFORMED = "broken\n  test\n\nthis is not a counts line\nM  END\n> <Value>\n5.0\n\n$$$$\n";
+
+	// ------------ public methods ------------
+
+	public static void main(String[] args) throws Exception
+	{
+		List<String> records = readRecords(new File("sample/DHFR.sdf"), NUM_TRAINING + 2);
+		File dir = Files.createTempDirectory("malformed").toFile();
+		try
+		{
+			// training: good records with the bad one in the middle; prediction: good, bad, good
+			File fnTrain = new File(dir, "training.sdf"), fnPred = new File(dir, "prediction.sdf");
+			List<String> train = new ArrayList<>(records.subList(0, NUM_TRAINING));
+			train.add(NUM_TRAINING / 2, MALFORMED);
+			writeRecords(fnTrain, train);
+			writeRecords(fnPred, Arrays.asList(records.get(NUM_TRAINING), MALFORMED, records.get(NUM_TRAINING + 1)));
+
+			Session session = new Session();
+			session.setLazyLoad(true);
+			session.addFile(new Session.DataFile(fnTrain.getPath(), Session.FILE_TRAINING, "Value"));
+			session.addFile(new Session.DataFile(fnPred.getPath(), Session.FILE_PREDICTION, null));
+			ExecuteSession exec = new ExecuteSession(session);
+			exec.loadFile(0);
+			exec.loadFile(1);
+			exec.partitionMolecules();
+			check("training entries", exec.getTraining().size() == NUM_TRAINING + 1);
+			check("prediction entries", exec.getPrediction().size() == 3);
+
+			exec.buildModel(null);
+			check("model entries", exec.getModel().numEntries() == NUM_TRAINING);
+
+			File fnSnap = new File(dir, "snapshot.bin");
+			exec.saveSnapshot(fnSnap.getPath());
+			check("snapshot entries", new TrainingSnapshot(fnSnap).getTraining().size() == NUM_TRAINING);
+
+			File fnOut = new File(dir, "output.sdf");
+			exec.saveOutput(fnOut.getPath(), "Value");
+			check("regular output records", countRecords(fnOut) == 2);
+
+			session.setRawOutput(true);
+			File fnRaw = new File(dir, "raw.sdf");
+			exec.saveOutput(fnRaw.getPath(), "Value");
+			check("raw output records", countRecords(fnRaw) == 2);
+
+			File fnStream = new File(dir, "stream.sdf");
+			exec.streamOutput(fnStream.getPath(), "Value");
+			check("streamed raw output records", countRecords(fnStream) == 2);
+		}
+		finally
+		{
+			for (File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+		System.out.println("OK");
+	}
+
+	// ------------ private methods ------------
+
+	// reads the first few records as text, each including its terminating "$$$$" line
+	private static List<String> readRecords(File f, int max) throws IOException
+	{
+		List<String> records = new ArrayList<>();
+		StringBuilder buff = new StringBuilder();
+		for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8))
+		{
+			buff.append(line).append('\n');
+			if (!line.startsWith("$$$$")) continue;
+			records.add(buff.toString());
+			buff.setLength(0);
+			if (records.size() == max) break;
+		}
+		if (records.size() < max) throw new IOException("Not enough records in " + f);
+		return records;
+	}
+
+	private static void writeRecords(File f, List<String> records) throws IOException
+	{
+		try (Writer wtr = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))
+		{
+			for (String rec : records) wtr.write(rec);
+		}
+	}
+
+	private static int countRecords(File f) throws IOException
+	{
+		int count = 0;
+		for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) if (line.startsWith("$$$$")) count++;
+		return count;
+	}
+
+	private static void check(String label, boolean ok)
+	{
+		if (ok) return;
+		System.out.println("FAILED: " + label);
+		System.exit(1);
+	}
+}
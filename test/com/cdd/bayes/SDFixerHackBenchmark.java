@@ -0,0 +1,146 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * Compares the throughput of ExecuteSession.SDFixerHack against the line-at-a-time implementation that it replaced, which
+ * is reproduced below: all of the sample SD files are loaded into memory and run through each filter, first to make sure
+ * that the output is the same byte for byte, then timed as the SD reader consumes it (i.e. decoded by an InputStreamReader,
+ * a block of characters at a time). Reports the median throughput; exits with an error if the outputs differ. Run from the
+ * project directory (see the "benchmark" target in build.xml).
+ */
+public class SDFixerHackBenchmark
+{
+	private static final int WARMUP = 3, REPEATS = 9;
+
+	// ------------ public methods ------------
+
+	public static void main(String[] args) throws Exception
+	{
+		File[] list = new File("sample").listFiles((dir, fn) -> fn.endsWith(".sdf"));
+		if (list == null) throw new IOException("Sample directory not found: run from the project directory.");
+		Arrays.sort(list);
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		for (File f : list) content.write(Files.readAllBytes(f.toPath()));
+		final byte[] data = content.toByteArray();
+
+		Function<InputStream, InputStream> previous = in -> new PreviousSDFixerHack(new BufferedReader(new InputStreamReader(in, ExecuteSession.SDF_CHARSET)));
+		Function<InputStream, InputStream> current = in -> new ExecuteSession.SDFixerHack(in);
+
+		if (!Arrays.equals(filterBytes(previous, data), filterBytes(current, data)))
+		{
+			System.out.println("FAILED: filtered output differs");
+			System.exit(1);
+		}
+
+		final double mbPrev = medianThroughput(previous, data), mbNew = medianThroughput(current, data);
+		System.out.println(String.format("%d files, %.1f MB: output identical; previous=%.0f MB/s current=%.0f MB/s (%.2fx)",
+							list.length, data.length * 1E-6, mbPrev, mbNew, mbNew / mbPrev));
+		System.out.println("OK");
+	}
+
+	// ------------ private methods ------------
+
+	// the complete output of the filter, as bytes
+	private static byte[] filterBytes(Function<InputStream, InputStream> filter, byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = filter.apply(new ByteArrayInputStream(data)))
+		{
+			byte[] buff = new byte[8192];
+			for (int sz; (sz = in.read(buff, 0, buff.length)) >= 0;) out.write(buff, 0, sz);
+		}
+		return out.toByteArray();
+	}
+
+	// median rate at which the filtered content can be read as characters, in MB/s (of input)
+	private static double medianThroughput(Function<InputStream, InputStream> filter, byte[] data) throws IOException
+	{
+		double[] rates = new double[REPEATS];
+		for (int n = -WARMUP; n < REPEATS; n++)
+		{
+			final long t0 = System.nanoTime();
+			long nchars = 0;
+			try (Reader rdr = new InputStreamReader(filter.apply(new ByteArrayInputStream(data)), ExecuteSession.SDF_CHARSET))
+			{
+				char[] buff = new char[8192];
+				for (int sz; (sz = rdr.read(buff, 0, buff.length)) >= 0;) nchars += sz;
+			}
+			final double sec = (System.nanoTime() - t0) * 1E-9;
+			if (nchars == 0) throw new IOException("Nothing read.");
+			if (n >= 0) rates[n] = data.length * 1E-6 / sec;
+		}
+		Arrays.sort(rates);
+		return rates[REPEATS / 2];
+	}
+
+	// the previous implementation, unchanged except for using the SD file charset rather than the platform default, so that
+	// the comparison doesn't depend on where it is run
+	private static final class PreviousSDFixerHack extends InputStream
+	{
+		private BufferedReader in;
+		private int pos = 0;
+		private byte[] buff = null;
+
+		public PreviousSDFixerHack(BufferedReader in)
+		{
+			this.in = in;
+		}
+
+		public int read() throws IOException
+		{
+			if (buff == null || pos >= buff.length) grabNextLine();
+			if (buff == null) return -1;
+			return buff[pos++];
+		}
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+
+		private void grabNextLine() throws IOException
+		{
+			String line = in.readLine();
+			if (line == null)
+			{
+				buff = null;
+				return;
+			}
+			if (line.length() >= 3 && line.charAt(0) == '>' && line.charAt(1) == ' ' && line.charAt(2) != '<')
+			{
+				line = ">" + line.substring(2);
+			}
+			buff = (line + "\n").getBytes(ExecuteSession.SDF_CHARSET);
+			pos = 0;
+		}
+	}
+}
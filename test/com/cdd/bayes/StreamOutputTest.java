@@ -0,0 +1,120 @@
+/*
+ * Bayesian Composite Models
+ *
+ * (c) 2015-2016 Collaborative Drug Discovery, Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ * All we ask is that proper credit is given for our work, which includes
+ * - but is not limited to - adding the above copyright notice to the beginning
+ * of your source code files, and to any copyright notice that you may distribute
+ * with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.cdd.bayes;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/*
+ * Checks streamed prediction output in raw mode (-r) for each kind of input: plain SD files are indexed and copied
+ * verbatim, while compressed files and DataSheets can't be indexed, so they go through the molecule reader and are written
+ * out as regenerated records instead; a session that has both kinds must get all of them, in order. The model is built
+ * from sample/DHFR.sdf, and the predictions are made for sample/molecules.sdf & sample/molecules.ds, so it needs to be run
+ * from the project directory (see the "test" target in build.xml).
+ */
+public class StreamOutputTest
+{
+	private static final String FIELD = "Value";
+	private static final File TRAINING = new File("sample/DHFR.sdf");
+	private static final File MOLECULES_SDF = new File("sample/molecules.sdf");
+	private static final File MOLECULES_DS = new File("sample/molecules.ds");
+	private static final int NUM_MOLECULES = 28; // records in each of the molecules files
+
+	// ------------ public methods ------------
+
+	public static void main(String[] args) throws Exception
+	{
+		File dir = Files.createTempDirectory("streamout").toFile();
+		try
+		{
+			File fnSDFGZ = gzip(MOLECULES_SDF, new File(dir, "molecules.sdf.gz"));
+			File fnDSGZ = gzip(MOLECULES_DS, new File(dir, "molecules.ds.gz"));
+
+			Session session = new Session();
+			session.setRawOutput(true);
+			session.addFile(new Session.DataFile(TRAINING.getPath(), Session.FILE_TRAINING, FIELD));
+			ExecuteSession exec = new ExecuteSession(session);
+			exec.loadFile(0);
+			exec.partitionMolecules();
+			exec.buildModel(null);
+
+			checkStream(exec, session, dir, "plain SD file", MOLECULES_SDF);
+			checkStream(exec, session, dir, "compressed SD file", fnSDFGZ);
+			checkStream(exec, session, dir, "plain & compressed SD files", MOLECULES_SDF, fnSDFGZ, MOLECULES_SDF);
+			checkStream(exec, session, dir, "DataSheet", MOLECULES_DS);
+			checkStream(exec, session, dir, "compressed DataSheet", fnDSGZ);
+			checkStream(exec, session, dir, "SD file & DataSheets", MOLECULES_SDF, MOLECULES_DS, fnDSGZ);
+		}
+		finally
+		{
+			for (File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+		System.out.println("OK");
+	}
+
+	// ------------ private methods ------------
+
+	// streams predictions for the given input files, and makes sure that each record made it, with its predictions
+	private static void checkStream(ExecuteSession exec, Session session, File dir, String label, File... inputs) throws Exception
+	{
+		while (session.numFiles() > 1) session.deleteFile(1);
+		for (File f : inputs) session.addFile(new Session.DataFile(f.getPath(), Session.FILE_PREDICTION, null));
+
+		File fnOut = new File(dir, "output.sdf");
+		exec.streamOutput(fnOut.getPath(), FIELD);
+
+		final int expected = inputs.length * NUM_MOLECULES;
+		int records = 0, scores = 0;
+		for (String line : Files.readAllLines(fnOut.toPath(), StandardCharsets.UTF_8))
+		{
+			if (line.startsWith("$$$$")) records++;
+			else if (line.startsWith("> ") && line.contains("<" + FIELD + "_Score>")) scores++;
+		}
+		check(label + ": records written (" + records + ")", records == expected);
+		check(label + ": records with predictions (" + scores + ")", scores == expected);
+		System.out.println(label + ": " + records + " records");
+	}
+
+	private static File gzip(File src, File dst) throws IOException
+	{
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(dst)))
+		{
+			Files.copy(src.toPath(), out);
+		}
+		return dst;
+	}
+
+	private static void check(String label, boolean ok)
+	{
+		if (ok) return;
+		System.out.println("FAILED: " + label);
+		System.exit(1);
+	}
+}